@@ -0,0 +1,15 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+/**
+ * When reading a file updates it's last access time, modeled on the Linux mount options.
+ */
+public enum JdbcAccessTimePolicy {
+	/** Every open for read updates the file row. */
+	STRICT,
+	/** Reads never update the access time. */
+	NOATIME,
+	/** Only update when the access time is not after the modified time or is older than the factory's relatime interval. */
+	RELATIME,
+	/** Keep access times in memory and write them to the database in batches. */
+	LAZYTIME
+}
@@ -0,0 +1,231 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A factory wide LRU cache of file_data chunks keyed by (fileid, chunk_number) and bounded by
+ * the total number of bytes held.
+ *
+ * Chunks can be kept on the heap or in direct (off heap) buffers. Either way get() returns
+ * a new array so callers are free to modify it, while getBuffer() returns a read only view
+ * of the cached bytes for callers that only copy out of it.
+ *
+ * The factory's own writes invalidate the cache. Changes made outside of this factory
+ * are not seen, so the cache is disabled (size 0) by default.
+ */
+public class JdbcChunkCache {
+
+	private static class Key {
+		long fileid;
+		long chunk;
+
+		Key(long fileid, long chunk) {
+			this.fileid = fileid;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(fileid)*31+Long.hashCode(chunk);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if( obj instanceof Key) {
+				Key other = (Key) obj;
+				return fileid == other.fileid && chunk == other.chunk;
+			}
+			return false;
+		}
+	}
+
+	private static class Entry {
+		byte [] heap;
+		ByteBuffer direct;
+
+		Entry(byte [] data, boolean useDirect) {
+			if( useDirect ) {
+				direct = ByteBuffer.allocateDirect(data.length);
+				direct.put(data);
+				direct.flip();
+			} else {
+				heap = data.clone();
+			}
+		}
+
+		int size() {
+			return heap != null ? heap.length : direct.capacity();
+		}
+
+		byte [] get() {
+			if( heap != null ) {
+				return heap.clone();
+			}
+			byte [] ret = new byte[direct.capacity()];
+			direct.duplicate().get(ret);
+			return ret;
+		}
+
+		ByteBuffer view() {
+			return heap != null ? ByteBuffer.wrap(heap).asReadOnlyBuffer() : direct.asReadOnlyBuffer();
+		}
+	}
+
+	private long maxBytes;
+	private long bytes;
+	//  bumped by every invalidation so a chunk read before it isn't cached after it
+	private long generation;
+	private boolean direct;
+	private LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+	//  the cached chunk numbers of each file, so a file can be invalidated without a scan
+	private Map<Long, Set<Long>> byFile = new HashMap<>();
+
+	JdbcChunkCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Keep chunks in direct buffers, off the heap. Chunks already cached are dropped.
+	 * @param direct
+	 */
+	public synchronized void setDirect(boolean direct) {
+		if( this.direct != direct ) {
+			this.direct = direct;
+			clear();
+		}
+	}
+
+	public synchronized boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 *
+	 * @param fileid
+	 * @param chunk
+	 * @return a copy of the cached chunk or null
+	 */
+	public synchronized byte [] get(long fileid, long chunk) {
+		Entry e = map.get(new Key(fileid, chunk));
+		return e == null ? null : e.get();
+	}
+
+	/**
+	 * Cached chunks are never changed, only replaced, so the view stays valid after
+	 * the chunk is invalidated or evicted.
+	 * 
+	 * @param fileid
+	 * @param chunk
+	 * @return a read only view of the cached chunk, positioned at it's first byte, or null
+	 */
+	public synchronized ByteBuffer getBuffer(long fileid, long chunk) {
+		Entry e = map.get(new Key(fileid, chunk));
+		return e == null ? null : e.view();
+	}
+
+	/**
+	 * 
+	 * @return the value to pass to put for a chunk about to be read
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * 
+	 * @param fileid
+	 * @param chunk
+	 * @param data
+	 * @param generation from getGeneration() before the chunk was read
+	 */
+	public synchronized void put(long fileid, long chunk, byte [] data, long generation) {
+		if( data == null || data.length > maxBytes || generation != this.generation ) {
+			return;
+		}
+
+		Key key = new Key(fileid, chunk);
+		remove(key);
+		Entry e = new Entry(data, direct);
+		map.put(key, e);
+		bytes += e.size();
+		byFile.computeIfAbsent(fileid, id -> new HashSet<>()).add(chunk);
+		trim();
+	}
+
+	public synchronized void invalidate(long fileid, long chunk) {
+		generation++;
+		remove(new Key(fileid, chunk));
+	}
+
+	/**
+	 * Remove every chunk of a file.
+	 * @param fileid
+	 */
+	public synchronized void invalidate(long fileid) {
+		generation++;
+		Set<Long> chunks = byFile.remove(fileid);
+		if( chunks != null ) {
+			for(Long chunk : chunks) {
+				Entry e = map.remove(new Key(fileid, chunk));
+				if( e != null ) {
+					bytes -= e.size();
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		generation++;
+		map.clear();
+		byFile.clear();
+		bytes = 0;
+	}
+
+	private void remove(Key key) {
+		Entry e = map.remove(key);
+		if( e != null ) {
+			bytes -= e.size();
+			Set<Long> chunks = byFile.get(key.fileid);
+			if( chunks != null ) {
+				chunks.remove(key.chunk);
+				if( chunks.isEmpty()) {
+					byFile.remove(key.fileid);
+				}
+			}
+		}
+	}
+
+	private void trim() {
+		while( bytes > maxBytes && !map.isEmpty()) {
+			//  the eldest entry is the least recently used
+			remove(map.keySet().iterator().next());
+		}
+	}
+
+}
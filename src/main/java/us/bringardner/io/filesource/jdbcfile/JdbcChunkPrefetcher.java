@@ -0,0 +1,192 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads a file's chunks on a factory worker thread, up to depth chunks ahead of the reader.
+ *
+ * Queued chunks hold permits from the factory wide prefetch memory budget, so the memory used
+ * by all prefetchers is capped at the budget plus the one chunk each may have in flight.
+ * The worker never waits for the budget, when it is used up (by streams that aren't being read,
+ * for example) the worker hands the chunk it holds to the reader and stops, see isStopped().
+ * The reader can start a new prefetcher once the budget frees up.
+ *
+ * close() doesn't interrupt the worker, an interrupt can close the connection under some 
+ * drivers. The worker checks for close between rows and close() drains the queue so a
+ * worker waiting for room wakes up.
+ */
+class JdbcChunkPrefetcher {
+
+	private static final byte [] EOF = new byte[0];
+
+	private static class Failure {
+		IOException error;
+
+		Failure(IOException error) {
+			this.error = error;
+		}
+	}
+
+	//  the last chunk read, queued without permits
+	private static class Stop {
+		byte [] data;
+
+		Stop(byte [] data) {
+			this.data = data;
+		}
+	}
+
+	private JdbcFileSource file;
+	private JdbcFileSourceFactory factory;
+	private Semaphore budget;
+	private int maxPermits;
+	private BlockingQueue<Object> queue;
+	private Future<?> task;
+	private volatile boolean closed;
+	private boolean done;
+	private boolean stopped;
+
+	/**
+	 *
+	 * @param file
+	 * @param startChunk the first chunk to read
+	 */
+	JdbcChunkPrefetcher(JdbcFileSource file, long startChunk) {
+		this.file = file;
+		factory = (JdbcFileSourceFactory) file.getFileSourceFactory();
+		budget = factory.getPrefetchBudget();
+		maxPermits = factory.getPrefetchMemory();
+		queue = new ArrayBlockingQueue<>(Math.max(1, factory.getPrefetchDepth()));
+		task = factory.getExecutor().submit(() -> fetch(startChunk));
+	}
+
+	private int permits(byte [] data) {
+		//  a chunk larger than the whole budget takes all of it instead of waiting forever
+		return Math.min(data.length, maxPermits);
+	}
+
+	private void fetch(long startChunk) {
+		Object result = EOF;
+		try(Connection con = factory.getConnection()) {
+			con.setAutoCommit(false);
+			try(PreparedStatement pstmt = con.prepareStatement(JdbcFileInputStream.SELECT_CHUNKS)) {
+				pstmt.setFetchSize(factory.getReadFetchSize());
+				pstmt.setLong(1, file.getFileId());
+				pstmt.setLong(2, startChunk);
+				try(ResultSet rs = pstmt.executeQuery()) {
+					while( !closed && rs.next()) {
+						int len = rs.getInt(2);
+						byte [] data;
+						try(InputStream in = rs.getBinaryStream(3)) {
+							data = in == null ? new byte[0] : in.readNBytes(len);
+						}
+						if( !budget.tryAcquire(permits(data))) {
+							//  out of budget, let the reader carry on without read ahead
+							queue.put(new Stop(data));
+							return;
+						}
+						try {
+							queue.put(data);
+						} catch (InterruptedException e) {
+							budget.release(permits(data));
+							throw e;
+						}
+						if( closed ) {
+							//  raced with close
+							drain();
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			//  the factory's executor is shutting down
+			return;
+		} catch (SQLException e) {
+			result = new Failure(new IOException(e));
+		} catch (IOException e) {
+			result = new Failure(e);
+		}
+
+		try {
+			if( !closed ) {
+				queue.put(result);
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 *
+	 * @return the next chunk or null at the end of the file
+	 * @throws IOException
+	 */
+	byte [] next() throws IOException {
+		if( done ) {
+			return null;
+		}
+
+		Object ret;
+		try {
+			ret = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+
+		if( ret == EOF ) {
+			done = true;
+			return null;
+		}
+		if( ret instanceof Failure ) {
+			done = true;
+			throw ((Failure) ret).error;
+		}
+		if( ret instanceof Stop ) {
+			done = true;
+			stopped = true;
+			return ((Stop) ret).data;
+		}
+
+		byte [] data = (byte[]) ret;
+		budget.release(permits(data));
+		return data;
+	}
+
+	/**
+	 *
+	 * @return true if the worker stopped before the end of the file because the budget was used up,
+	 * the chunks after the one last returned by next() have to be read some other way.
+	 */
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Stop the worker and give back the memory held by unread chunks.
+	 */
+	void close() {
+		closed = true;
+		//  only drops the task if it hasn't started
+		task.cancel(false);
+		drain();
+	}
+
+	private void drain() {
+		Object tmp;
+		while( (tmp=queue.poll()) != null) {
+			if( tmp instanceof byte[] && tmp != EOF) {
+				budget.release(permits((byte[]) tmp));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Inserts an output stream's chunks on a factory worker thread while the stream fills the next one.
+ *
+ * The stream hands over full buffers, up to depth of them wait in the queue and the stream
+ * blocks when it is full. Buffers are given back through the free queue once their batch is
+ * executed. The worker owns the stream's connection between sync() calls.
+ *
+ * The first failure is kept and thrown to the stream by the next write() or sync().
+ */
+class JdbcChunkWriter {
+
+	private static final Object STOP = new Object();
+
+	private static class Chunk {
+		long number;
+		byte [] data;
+		int length;
+
+		Chunk(long number, byte[] data, int length) {
+			this.number = number;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private Connection con;
+	private PreparedStatement insert;
+	private long fileid;
+	private boolean commit;
+	private int batchSize;
+	private Queue<byte[]> free;
+	private BlockingQueue<Object> queue;
+	private Future<?> task;
+	private volatile IOException error;
+
+	/**
+	 *
+	 * @param factory
+	 * @param con
+	 * @param insert chunk_number, fileid, length, data
+	 * @param fileid to insert under
+	 * @param commit commit after each batch
+	 * @param free receives the buffers once they are written
+	 */
+	JdbcChunkWriter(JdbcFileSourceFactory factory, Connection con, PreparedStatement insert,
+			long fileid, boolean commit, Queue<byte[]> free) {
+		this.con = con;
+		this.insert = insert;
+		this.fileid = fileid;
+		this.commit = commit;
+		this.free = free;
+		batchSize = Math.max(1, factory.getWriteBatchSize());
+		queue = new ArrayBlockingQueue<>(Math.max(1, factory.getWriteBehindDepth()));
+		task = factory.getExecutor().submit(this::run);
+	}
+
+	private void run() {
+		Chunk [] batch = new Chunk[batchSize];
+		int pending = 0;
+		try {
+			while( true ) {
+				Object next = queue.take();
+				if( next == STOP ) {
+					return;
+				}
+				if( next instanceof CountDownLatch ) {
+					pending = execute(batch, pending);
+					((CountDownLatch) next).countDown();
+				} else {
+					Chunk chunk = (Chunk) next;
+					if( error != null ) {
+						//  keep draining so the stream never blocks on a dead pipeline
+						free.add(chunk.data);
+						continue;
+					}
+					batch[pending++] = chunk;
+					if( pending >= batchSize ) {
+						pending = execute(batch, pending);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			//  stopped
+		}
+	}
+
+	private int execute(Chunk [] batch, int pending) {
+		try {
+			if( error == null && pending > 0 ) {
+				for (int idx = 0; idx < pending; idx++) {
+					Chunk chunk = batch[idx];
+					insert.setLong(1, chunk.number);
+					insert.setLong(2, fileid);
+					insert.setInt(3, chunk.length);
+					JdbcFileSource.bindData(insert, 4, chunk.data, 0, chunk.length);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+				if( commit ) {
+					con.commit();
+				}
+			}
+		} catch (SQLException e) {
+			error = new IOException(e);
+		} catch (RuntimeException e) {
+			error = new IOException(e);
+		}
+
+		for (int idx = 0; idx < pending; idx++) {
+			free.add(batch[idx].data);
+			batch[idx] = null;
+		}
+		return 0;
+	}
+
+	private void check() throws IOException {
+		if( error != null ) {
+			throw error;
+		}
+	}
+
+	private void put(Object obj) throws IOException {
+		try {
+			queue.put(obj);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Queue a chunk, blocks while the queue is full.
+	 *
+	 * @param number chunk_number
+	 * @param data is owned by the writer until it comes back through the free queue
+	 * @param length
+	 * @throws IOException from an earlier chunk
+	 */
+	void write(long number, byte [] data, int length) throws IOException {
+		check();
+		put(new Chunk(number, data, length));
+	}
+
+	/**
+	 * Wait until everything queued is in the database. The stream can use the connection
+	 * until the next write().
+	 *
+	 * @throws IOException
+	 */
+	void sync() throws IOException {
+		check();
+		CountDownLatch done = new CountDownLatch(1);
+		put(done);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		check();
+	}
+
+	/**
+	 * Stop the worker, dropping anything still queued, and wait for it to let go of the connection.
+	 */
+	void stop() {
+		Object tmp;
+		while( (tmp=queue.poll()) != null) {
+			if( tmp instanceof Chunk ) {
+				free.add(((Chunk) tmp).data);
+			} else if( tmp instanceof CountDownLatch ) {
+				((CountDownLatch) tmp).countDown();
+			}
+		}
+		if( !queue.offer(STOP)) {
+			task.cancel(true);
+		}
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | CancellationException e) {
+			//  nothing left to wait for
+		}
+	}
+
+}
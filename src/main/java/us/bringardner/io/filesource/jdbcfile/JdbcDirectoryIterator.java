@@ -0,0 +1,160 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterate the children of a directory one page at a time.
+ * 
+ * Pages are read with a keyset query ordered by (parentid,name), each page starts 
+ * after the last name of the previous one. No connection is held between pages and 
+ * only one page of rows is in memory, so very large directories can be walked in constant memory.
+ * 
+ * An optional JdbcSqlFilter is added to the where clause so only matching rows are read.
+ * 
+ * IOExceptions are thrown as UncheckedIOException.
+ */
+public class JdbcDirectoryIterator implements Iterator<JdbcFileSource> {
+
+	private static final String SELECT = "select * from file_source.file where parentid = ?";
+
+	private JdbcFileSource dir;
+	private JdbcFileSourceFactory factory;
+	private int pageSize;
+	private JdbcSqlFilter filter;
+	private boolean exact = true;
+	private List<Object> params = new ArrayList<>();
+	private String firstPage;
+	private String nextPage;
+
+	private List<JdbcFileRow> page = new ArrayList<>();
+	private int pos = 0;
+	private String lastName;
+	private boolean lastPage = false;
+	private JdbcFileSource nextFile;
+	private long count = 0;
+
+	/**
+	 * 
+	 * @param dir - if this is not an existing directory the iterator is empty
+	 * @param pageSize - number of rows to read per query
+	 * @throws IOException 
+	 */
+	public JdbcDirectoryIterator(JdbcFileSource dir, int pageSize) throws IOException {
+		this(dir,pageSize,null);
+	}
+
+	/**
+	 * 
+	 * @param dir - if this is not an existing directory the iterator is empty
+	 * @param pageSize - number of rows to read per query
+	 * @param filter - may be null 
+	 * @throws IOException 
+	 */
+	public JdbcDirectoryIterator(JdbcFileSource dir, int pageSize, JdbcSqlFilter filter) throws IOException {
+		this.dir = dir;
+		this.pageSize = pageSize < 1 ? 1 : pageSize;
+		this.filter = filter;
+		factory = (JdbcFileSourceFactory) dir.getFileSourceFactory();
+		lastPage = !dir.isDirectory();
+
+		StringBuilder where = new StringBuilder(SELECT);
+		if( filter != null ) {
+			where.append(" and ");
+			exact = filter.appendWhere(where, params);
+		}
+		firstPage = where+" order by name";
+		nextPage = where+" and name > ? order by name";
+	}
+
+	/**
+	 * 
+	 * @return number of children returned so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			while( nextFile == null ) {
+				if( pos >= page.size()) {
+					if( lastPage ) {
+						break;
+					}
+					loadPage();
+					continue;
+				}
+
+				JdbcFileRow r = page.get(pos++);
+				JdbcFileSource tmp = new JdbcFileSource(dir, r.name);
+				tmp.setRow(r);
+				if( exact || filter.accept(tmp)) {
+					nextFile = tmp;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return nextFile != null;
+	}
+
+	@Override
+	public JdbcFileSource next() {
+		if( !hasNext()) {
+			throw new NoSuchElementException();
+		}
+		JdbcFileSource ret = nextFile;
+		nextFile = null;
+		count++;
+
+		return ret;
+	}
+
+	private void loadPage() throws IOException {
+		page.clear();
+		pos = 0;
+		String sql = lastName == null ? firstPage : nextPage;
+
+		try(Connection con = factory.getConnection()) {
+			try(PreparedStatement pstmt = con.prepareStatement(sql)) {
+				pstmt.setMaxRows(pageSize);
+				pstmt.setFetchSize(pageSize);
+				int idx = 1;
+				pstmt.setLong(idx++, dir.getFileId());
+				for(Object val : params) {
+					pstmt.setObject(idx++, val);
+				}
+				if( lastName != null ) {
+					pstmt.setString(idx++, lastName);
+				}
+				try(ResultSet rs = pstmt.executeQuery()) {
+					JdbcFileRowMapper mapper = factory.getRowMapper(sql, rs);
+					while(rs.next()) {
+						page.add(mapper.map(rs));
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+
+		if( page.size() < pageSize) {
+			lastPage = true;
+		}
+		if( !page.isEmpty()) {
+			lastName = page.get(page.size()-1).name;
+		}
+	}
+
+}
@@ -32,8 +32,14 @@ package us.bringardner.io.filesource.jdbcfile;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Objects;
 
 /**
  * @author Tony Bringardner
@@ -42,12 +48,26 @@ import java.sql.SQLException;
 public class JdbcFileInputStream extends InputStream {
 
 
+	static final String SELECT_CHUNKS = "select chunk_number,length,data from file_source.file_data"
+			+ " where fileid=? and chunk_number >= ? order by chunk_number";
+
 	private JdbcFileSource file;
-	private byte [] data ;
-	private int pos=-1;
+	private JdbcFileSourceFactory factory;
+	//  the current chunk, it's position is the next byte to read
+	private ByteBuffer data ;
+	private Connection con;
+	private PreparedStatement stmt;
 	private ResultSet rs;
+	private JdbcChunkPrefetcher prefetcher;
+	//  the prefetcher ran out of budget, read without it until the budget frees up
+	private boolean noPrefetch;
+	//  chunk cache generation when the cursor was opened
+	private long generation;
 	private int currentChunk;
 	private boolean eof = false;
+	//  file offset of the start of data
+	private long chunkStart;
+	private long [] offsets;
 
 
 
@@ -60,6 +80,7 @@ public class JdbcFileInputStream extends InputStream {
 	public JdbcFileInputStream(JdbcFileSource file, long startingPosition) throws  IOException {
 		super();
 		this.file = file;
+		factory = (JdbcFileSourceFactory) file.getFileSourceFactory();
 		if( !file.exists() || !file.isFile()){
 			throw new FileNotFoundException("Jdbc file "+file.getCanonicalPath()+") does not exists or is not a file.");
 		}
@@ -76,39 +97,295 @@ public class JdbcFileInputStream extends InputStream {
 	public int read() throws IOException {
 		int ret = -1;
 
-		if( !eof ) {
-			if(pos < 0 || pos >= data.length){
+		while( !eof ) {
+			if(data == null || !data.hasRemaining()){
 				loadNextChunk();
-				ret = read();
 			} else {
-				ret = data[pos++];
+				ret = data.get();
 				ret = ret & 0xff;
+				break;
 			}
 		}
 
 		return ret;
 	}
-	
-	
-	private void loadNextChunk() throws IOException {
 
-		data = file.getChunk(currentChunk++);
-		pos = 0;
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		if( len == 0 ) {
+			return 0;
+		}
+
+		int ret = 0;
+		while( ret < len && !eof ) {
+			if(data == null || !data.hasRemaining()){
+				loadNextChunk();
+			} else {
+				int cnt = Math.min(len-ret, data.remaining());
+				data.get(b, off+ret, cnt);
+				ret += cnt;
+			}
+		}
+
+		return ret == 0 ? -1 : ret;
+	}
+
+	/**
+	 * Skip within the current chunk or, if the target is past it, 
+	 * find the chunk from the chunk lengths and start reading there.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if( n <= 0 || eof ) {
+			return 0;
+		}
+
+		if( data != null && data.remaining() >= n ) {
+			data.position(data.position()+(int)n);
+			return n;
+		}
+
+		long start = chunkStart + (data == null ? 0 : data.position());
+		if( offsets == null ) {
+			offsets = file.getChunkOffsets();
+		}
+		long target = Math.min(start+n, offsets[offsets.length-1]);
+
+		int chunk = JdbcFileSource.findChunk(offsets, target);
+		if( chunk != currentChunk ) {
+			//  the cursor is positioned at currentChunk
+			closeCursor();
+		}
+		data = null;
+		currentChunk = chunk;
+		chunkStart = offsets[chunk-1];
+		loadNextChunk();
+		if( data != null ) {
+			data.position((int) (target-chunkStart));
+		}
+
+		return target-start;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return data == null ? 0 : data.remaining();
+	}
+
+	private void loadNextChunk() throws IOException {
+		if( data != null ) {
+			chunkStart += data.limit();
+		}
+		if( factory.getPrefetchDepth() > 0 && (!noPrefetch || budgetFreed())) {
+			if( prefetcher == null ) {
+				//  a cursor opened while the prefetcher was stopped is behind us
+				closeCursor();
+				noPrefetch = false;
+				prefetcher = new JdbcChunkPrefetcher(file, currentChunk);
+			}
+			data = wrap(prefetcher.next());
+			currentChunk++;
+			if( prefetcher.isStopped()) {
+				prefetcher.close();
+				prefetcher = null;
+				noPrefetch = true;
+			}
+		} else {
+			//  read the cached chunk in place rather than copying it
+			JdbcChunkCache cache = factory.getChunkCache();
+			ByteBuffer hit = cache.isEnabled() ? cache.getBuffer(file.getFileId(), currentChunk) : null;
+			if( hit != null ) {
+				//  the cursor (if any) is behind us now
+				closeCursor();
+				data = hit;
+				currentChunk++;
+			} else if( factory.isCursorReads()) {
+				data = wrap(readNextRow());
+			} else {
+				data = wrap(file.getChunk(currentChunk++));
+			}
+		}
 		if( data == null ){
 			eof = true;
+			closeCursor();
 		}
 	}
 
-	public void close() throws IOException {
-		if( rs != null ){
-			try {
-				rs.close();
-				file.setLastAccessTime(System.currentTimeMillis());
-			} catch (SQLException e) {
-				e.printStackTrace();
-				throw new IOException("Error closing result set. e="+e);
+	/**
+	 * 
+	 * @return true if the prefetch budget has room for a full read ahead again
+	 */
+	private boolean budgetFreed() {
+		long want = Math.min((long)factory.getPrefetchDepth()*factory.getChunk_size(), factory.getPrefetchMemory());
+		return factory.getPrefetchBudget().availablePermits() >= want;
+	}
+
+	private static ByteBuffer wrap(byte [] chunk) {
+		return chunk == null ? null : ByteBuffer.wrap(chunk);
+	}
+
+	/**
+	 * Read the next chunk from a cursor over the remaining chunks, opening it if needed.
+	 */
+	private byte [] readNextRow() throws IOException {
+		byte [] ret = null;
+		try {
+			openCursor();
+			if( rs.next()) {
+				int chunk = rs.getInt(1);
+				int len = rs.getInt(2);
+				try(InputStream in = rs.getBinaryStream(3)) {
+					ret = in == null ? new byte[0] : in.readNBytes(len);
+				}
+				currentChunk = chunk+1;
+				JdbcChunkCache cache = factory.getChunkCache();
+				if( cache.isEnabled()) {
+					cache.put(file.getFileId(), chunk, ret, generation);
+				}
 			}
+		} catch (SQLException e) {
+			closeCursor();
+			throw new IOException(e);
 		}
+
+		return ret;
+	}
+
+	private void openCursor() throws SQLException, IOException {
+		if( rs == null ) {
+			con = factory.getConnection();
+			//  some drivers (PostgreSQL) only honor the fetch size inside a transaction
+			con.setAutoCommit(false);
+			stmt = con.prepareStatement(SELECT_CHUNKS);
+			stmt.setFetchSize(factory.getReadFetchSize());
+			stmt.setLong(1, file.getFileId());
+			stmt.setLong(2, currentChunk);
+			generation = factory.getChunkCache().getGeneration();
+			rs = stmt.executeQuery();
+		}
+	}
+
+	private interface ChunkSink {
+		//  write and consume the remaining bytes of data
+		void write(ByteBuffer data) throws IOException;
+	}
+
+	/**
+	 * Write the rest of the file to out, one write per chunk.
+	 */
+	@Override
+	public long transferTo(OutputStream out) throws IOException {
+		Objects.requireNonNull(out);
+		byte [] scratch = new byte[factory.getChunk_size()];
+		return transfer(buf -> {
+			if( buf.hasArray()) {
+				out.write(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+				buf.position(buf.limit());
+			} else {
+				//  a cached chunk is read only, copy it out through scratch
+				while( buf.hasRemaining()) {
+					int cnt = Math.min(scratch.length, buf.remaining());
+					buf.get(scratch, 0, cnt);
+					out.write(scratch, 0, cnt);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write the rest of the file to target, one write per chunk.
+	 * 
+	 * @param target
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		Objects.requireNonNull(target);
+		return transfer(buf -> {
+			while( buf.hasRemaining()) {
+				target.write(buf);
+			}
+		});
+	}
+
+	private long transfer(ChunkSink sink) throws IOException {
+		long ret = 0;
+		if( eof ) {
+			return ret;
+		}
+
+		//  what is left of the current chunk
+		if( data != null && data.hasRemaining()) {
+			ret += data.remaining();
+			sink.write(data);
+		}
+
+		if( factory.getPrefetchDepth() > 0 || !factory.isCursorReads() || factory.getChunkCache().isEnabled()) {
+			//  let loadNextChunk pick the source
+			while( !eof ) {
+				loadNextChunk();
+				if( data != null ) {
+					ret += data.remaining();
+					sink.write(data);
+				}
+			}
+			return ret;
+		}
+
+		//  pipe each chunk from the cursor through one reused buffer
+		try {
+			openCursor();
+			byte [] buf = new byte[factory.getChunk_size()];
+			while( rs.next()) {
+				int len = rs.getInt(2);
+				if( len > buf.length ) {
+					buf = new byte[len];
+				}
+				int cnt = 0;
+				try(InputStream in = rs.getBinaryStream(3)) {
+					if( in != null ) {
+						cnt = in.readNBytes(buf, 0, len);
+					}
+				}
+				sink.write(ByteBuffer.wrap(buf, 0, cnt));
+				ret += cnt;
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			eof = true;
+			data = null;
+			closeCursor();
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Release the cursor (or prefetcher) and it's connection, reading continues from currentChunk.
+	 */
+	private void closeCursor() throws IOException {
+		if( prefetcher != null ) {
+			prefetcher.close();
+			prefetcher = null;
+		}
+		try(Connection c = con; PreparedStatement s = stmt; ResultSet r = rs) {
+			//  just close
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			rs = null;
+			stmt = null;
+			con = null;
+		}
+	}
+
+	public void close() throws IOException {
+		closeCursor();
 	}
 
 }
@@ -29,13 +29,33 @@
  */
 package us.bringardner.io.filesource.jdbcfile;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
  * @author Tony Bringardner
  *
+ * Chunks are inserted with JDBC batches over one connection held until the stream 
+ * is closed. The stream tracks the next chunk number and the running length itself.
+ * 
+ * With atomic writes (the factory default) chunks are staged under a fileid of the stream's 
+ * own (see JdbcStagingArea), one commit per batch, and moved to the file in a single transaction on close().
+ * Readers see the old content until then and abort() throws the staged chunks away. Closes are 
+ * serialized on the file row, an append lands after anything committed since it was opened.
+ * Otherwise chunks go straight to the file and the file row is updated on flush() or close().
+ * 
+ * When the factory's write behind depth is set the inserts run on a background thread, 
+ * see JdbcChunkWriter. Errors from it are thrown by a later write, flush() or close().
  */
 public class JdbcFileOutputStream extends OutputStream {
 
@@ -46,52 +66,297 @@ public class JdbcFileOutputStream extends OutputStream {
 	 * Most of the chunk sizes will be determines by the sender through the write functions 
 	 */
 	public static int chunkSize = (1024*100);
+	private static final String INSERT = "insert into file_source.file_data (chunk_number,fileid,length,data) values(?,?,?,?)";
+	private static final String DELETE_FROM = "delete from file_source.file_data where fileid=? and chunk_number>=?";
+
 	private JdbcFileSource file;
+	private JdbcFileSourceFactory factory;
 	private byte [] data = new byte[chunkSize];
 	private int pointer = 0;	
 	private boolean isClosed=false;
+	private boolean atomic;
+	//  replace the content instead of appending to it, only deferred when atomic
+	private boolean truncate;
+	//  where this stream's chunks are inserted
+	private long targetId;
+	private long firstChunk;
+	private long nextChunk;
+	private long length;
+	//  the length when the stream was opened, atomic appends are moved to the end of 
+	//  whatever was committed in the mean time
+	private long startLength;
+	private Connection con;
+	private PreparedStatement insert;
+	//  buffers referenced by the pending batch, they are reused once it executes
+	private List<byte[]> inBatch = new ArrayList<>();
+	//  a chunk of the caller's array is bound in the pending batch
+	private boolean callerInBatch;
+	private Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+	private boolean writeBehind;
+	private JdbcChunkWriter writer;
+	private int pending;
+	private boolean rowIsCurrent = true;
 
 	
 	public JdbcFileOutputStream(JdbcFileSource file, boolean append) throws IOException{
 		super();
 
 		this.file = file;
+		factory = (JdbcFileSourceFactory)file.getFileSourceFactory();
+		atomic = factory.isAtomicWrites();
+		writeBehind = factory.getWriteBehindDepth() > 0;
 		if( !file.exists() ){
 			file.createNewFile();
 		} else if( !file.isFile()) {
 			throw new IOException(file.getCanonicalPath()+" is not a file.");
 		} else if( ! append ){
-			file.truncate();			
+			if( atomic ) {
+				truncate = true;
+			} else {
+				file.truncate();
+			}
 		}
-		int size = ((JdbcFileSourceFactory)file.getFileSourceFactory()).getChunk_size();
+		int size = factory.getChunk_size();
 		data = new byte[size];
+		targetId = atomic ? factory.getStagingArea().open(file.getFileId()) : file.getFileId();
+		if( truncate ) {
+			firstChunk = 1;
+			length = 0;
+		} else {
+			firstChunk = file.getChunkCount()+1;
+			length = file.length();
+		}
+		startLength = length;
+		nextChunk = firstChunk;
 	}
 
 
+
 	/* (non-Javadoc)
 	 * @see java.io.OutputStream#write(int)
 	 */
 	public void write(int b) throws IOException {
+		if( isClosed ) {
+			throw new IOException("Stream is closed");
+		}
 
 		data[pointer++]= (byte)b;
 		
 		if(pointer >= data.length){
-			flush();
+			addChunk(pointer);
 		}
 		
 	}
-	
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		if( isClosed ) {
+			throw new IOException("Stream is closed");
+		}
+
+		while( len > 0 ) {
+			if( pointer == 0 && len >= data.length && !writeBehind ) {
+				//  a whole chunk is bound straight from the caller's array
+				addChunk(b, off);
+				off += data.length;
+				len -= data.length;
+			} else {
+				int cnt = Math.min(len, data.length-pointer);
+				System.arraycopy(b, off, data, pointer, cnt);
+				pointer += cnt;
+				off += cnt;
+				len -= cnt;
+				if(pointer >= data.length){
+					addChunk(pointer);
+				}
+			}
+		}
+		if( callerInBatch ) {
+			//  the batch can't keep the caller's array once write returns
+			executeBatch();
+		}
+	}
+
+	private void open() throws SQLException, IOException {
+		if( con == null ) {
+			con = factory.getConnection();
+			con.setAutoCommit(!atomic);
+			if( !atomic ) {
+				//  drop whatever an aborted write left past the end of the file.
+				//  Atomic writes skip this, nothing is under a new staging id yet
+				try(PreparedStatement pstmt = con.prepareStatement(DELETE_FROM)) {
+					pstmt.setLong(1, targetId);
+					pstmt.setLong(2, nextChunk);
+					pstmt.executeUpdate();
+				}
+			}
+			insert = con.prepareStatement(INSERT);
+			if( writeBehind ) {
+				writer = new JdbcChunkWriter(factory, con, insert, targetId, atomic, free);
+			}
+		}
+	}
+
+	private byte [] buffer() {
+		byte [] ret = free.poll();
+		return ret == null ? new byte[data.length] : ret;
+	}
+
+	/**
+	 * Add the first len bytes of data to the insert batch, data is replaced with a free buffer.
+	 */
+	private void addChunk(int len) throws IOException {
+		try {
+			open();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+
+		byte [] buf = data;
+		data = buffer();
+		pointer = 0;
+
+		if( writer != null ) {
+			//  blocks while the pipeline is full
+			writer.write(nextChunk, buf, len);
+			added(len);
+		} else {
+			inBatch.add(buf);
+			addBatch(buf, 0, len);
+		}
+	}
+
+	/**
+	 * Add a whole chunk of the caller's array to the insert batch without copying it, 
+	 * write() executes the batch before it returns.
+	 * The write behind thread would hold the array too long so it is only used without one.
+	 */
+	private void addChunk(byte [] b, int off) throws IOException {
+		try {
+			open();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		callerInBatch = true;
+		addBatch(b, off, data.length);
+	}
+
+	private void addBatch(byte [] buf, int off, int len) throws IOException {
+		try {
+			insert.setLong(1, nextChunk);
+			insert.setLong(2, targetId);
+			insert.setInt(3, len);
+			JdbcFileSource.bindData(insert, 4, buf, off, len);
+			insert.addBatch();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		pending++;
+		added(len);
+		if( pending >= factory.getWriteBatchSize()) {
+			executeBatch();
+		}
+	}
+
+	private void added(int len) {
+		nextChunk++;
+		length += len;
+		rowIsCurrent = false;
+	}
+
+	private void executeBatch() throws IOException {
+		if( writer != null ) {
+			writer.sync();
+		} else if( pending > 0 ) {
+			try {
+				insert.executeBatch();
+				if( atomic ) {
+					//  one commit per batch, staged chunks aren't visible to readers anyway
+					con.commit();
+				}
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+			pending = 0;
+			callerInBatch = false;
+			free.addAll(inBatch);
+			inBatch.clear();
+		}
+	}
+
+	/**
+	 * Write any partial chunk and pending batch. 
+	 * Without atomic writes the file row is brought up to date as well, 
+	 * atomic writes only become visible on close().
+	 */
 	public void flush() throws IOException {
 
-		if( !isClosed && pointer > 0 ){
-			byte [] tmp = data;
-			if( pointer < data.length ){
-				tmp = new byte[pointer];
-				System.arraycopy(data,0,tmp,0,pointer);
+		if( !isClosed ){
+			if( pointer > 0 ) {
+				//  a partial chunk is bound by length, not copied
+				addChunk(pointer);
+			}
+			executeBatch();
+			if( !atomic && !rowIsCurrent ) {
+				try {
+					file.updateLength(con, length, (int)(nextChunk-1));
+				} catch (SQLException e) {
+					throw new IOException(e);
+				}
+				rowIsCurrent = true;
+				file.chunksChanged();
+			}
+		}
+	}
+
+	/**
+	 * Move the staged chunks to the file and update the file row in one transaction.
+	 * 
+	 * The file row is locked first. An append goes after whatever other writers committed 
+	 * since this stream was opened, the staged chunks are renumbered as they are moved 
+	 * and the length and chunk_count are taken from the locked row.
+	 */
+	private void commit() throws IOException {
+		if( !file.exists()) {
+			//  deleting the file deleted the staged chunks too
+			throw new FileNotFoundException(file.getAbsolutePath()+" was deleted");
+		}
+		try {
+			open();
+			long [] current = file.lockLength(con);
+			if( current == null ) {
+				throw new FileNotFoundException(file.getAbsolutePath()+" was deleted");
+			}
+			long baseLength = truncate ? 0 : current[0];
+			long baseCount = truncate ? 0 : current[1];
+			long staged = nextChunk-firstChunk;
+			try(PreparedStatement pstmt = con.prepareStatement(DELETE_FROM)) {
+				pstmt.setLong(1, file.getFileId());
+				pstmt.setLong(2, baseCount+1);
+				pstmt.executeUpdate();
+			}
+			try(PreparedStatement pstmt = con.prepareStatement(
+					"update file_source.file_data set fileid=?, chunk_number=chunk_number+? where fileid=?")) {
+				pstmt.setLong(1, file.getFileId());
+				pstmt.setLong(2, baseCount+1-firstChunk);
+				pstmt.setLong(3, targetId);
+				long moved = pstmt.executeUpdate();
+				if( moved != staged ) {
+					//  rolled back by discard()
+					throw new IOException("Expected "+staged+" staged chunks for "+file.getAbsolutePath()+" but found "+moved);
+				}
 			}
-			file.appendData(tmp.length,tmp);
-			pointer =  0;
+			file.updateLength(con, baseLength+length-startLength, (int)(baseCount+staged));
+			con.commit();
+		} catch (SQLException e) {
+			throw new IOException(e);
 		}
+		rowIsCurrent = true;
+		file.chunksChanged();
 	}
 
 	
@@ -100,11 +365,94 @@ public class JdbcFileOutputStream extends OutputStream {
 			return;
 		}
 
-		flush();
-		isClosed = true;
+		boolean ok = false;
+		try {
+			flush();
+			if( atomic && (truncate || !rowIsCurrent)) {
+				commit();
+			}
+			ok = true;
+		} finally {
+			if( ok ) {
+				release();
+			} else {
+				discard();
+			}
+		}
 
 	}
 
-	
+	/**
+	 * Close the stream without writing what it was given.
+	 * 
+	 * With atomic writes the file is left as it was before the stream was opened. 
+	 * Otherwise the unwritten part of the last chunk is dropped and chunks already 
+	 * sent to the database are kept and an earlier failure is still thrown.
+	 * 
+	 * @throws IOException
+	 */
+	public void abort() throws IOException {
+		if( isClosed) {
+			return;
+		}
+
+		if( atomic ) {
+			discard();
+		} else {
+			pointer = 0;
+			close();
+		}
+	}
+
+	/**
+	 * Roll back and delete the staged chunks.
+	 */
+	private void discard() throws IOException {
+		stopWriter();
+		try {
+			if( con != null && atomic ) {
+				con.rollback();
+				try(PreparedStatement pstmt = con.prepareStatement(DELETE_FROM)) {
+					pstmt.setLong(1, targetId);
+					pstmt.setLong(2, 0);
+					pstmt.executeUpdate();
+				}
+				con.commit();
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			//  the row snapshot may have been updated in the rolled back transaction
+			file.refresh();
+			release();
+		}
+	}
+
+	private void stopWriter() {
+		if( writer != null ) {
+			writer.stop();
+			writer = null;
+		}
+	}
+
+	private void release() throws IOException {
+		stopWriter();
+		isClosed = true;
+		free.clear();
+		inBatch.clear();
+		try(Connection c = con; PreparedStatement p = insert) {
+			if( c != null && atomic ) {
+				c.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			insert = null;
+			con = null;
+			if( atomic ) {
+				factory.getStagingArea().close(targetId);
+			}
+		}
+	}
 
 }
@@ -0,0 +1,50 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+/**
+ * A snapshot of one row of file_source.file.
+ * 
+ * Populated by JdbcFileRowMapper and held by JdbcFileSource until it's time to live expires.
+ */
+class JdbcFileRow implements Cloneable {
+
+	long fileid;
+	long parentid;
+	String name = "";
+	String owner = "";
+	String groupName = "";
+	String fileType = "";
+	long createTime;
+	long lastAccessDate;
+	long lastModifiedDate;
+	long length;
+	int chunkCount;
+
+	boolean ownerReadable;
+	boolean ownerWriteable;
+	boolean ownerExecutable;
+	boolean groupReadable;
+	boolean groupWriteable;
+	boolean groupExecutable;
+	boolean otherReadable;
+	boolean otherWriteable;
+	boolean otherExecutable;
+
+	// when this snapshot was read
+	long lastUpdate = System.currentTimeMillis();
+
+	boolean hasExprired(long timeToLive) {
+		return System.currentTimeMillis()-lastUpdate > timeToLive;
+	}
+
+	/**
+	 * Rows held by the listing cache are shared, each JdbcFileSource gets it's own copy. 
+	 */
+	JdbcFileRow copy() {
+		try {
+			return (JdbcFileRow) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
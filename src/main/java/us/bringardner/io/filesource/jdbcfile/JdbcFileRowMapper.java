@@ -0,0 +1,126 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Maps rows of file_source.file to JdbcFileRow.
+ * 
+ * The column indexes are resolved once from the ResultSetMetaData of a statement,
+ * so mapping a row is just a series of typed getters by index.
+ * The factory keeps one mapper per statement (see JdbcFileSourceFactory.getRowMapper).
+ */
+class JdbcFileRowMapper {
+
+	private static final String [] COLUMNS = {
+			JdbcFileSource.FILEID,
+			JdbcFileSource.PARENTID,
+			JdbcFileSource.NAME,
+			JdbcFileSource.OWNER,
+			JdbcFileSource.GROUP_NAME,
+			JdbcFileSourceFactory.FILE_TYPE,
+			JdbcFileSource.CREATE_TIME,
+			JdbcFileSource.LAST_ACCESS_DATE,
+			JdbcFileSource.LAST_MODIFIED_DATE,
+			JdbcFileSource.LENGTH,
+			JdbcFileSource.CHUNK_COUNT,
+			JdbcFileSource.OWNER_READABLE,
+			JdbcFileSource.OWNER_WRITEABLE,
+			JdbcFileSource.OWNER_EXECUTABLE,
+			JdbcFileSource.GROUP_READABLE,
+			JdbcFileSource.GROUP_WRITEABLE,
+			JdbcFileSource.GROUP_EXECUTABLE,
+			JdbcFileSource.OTHER_READABLE,
+			JdbcFileSource.OTHER_WRITEABLE,
+			JdbcFileSource.OTHER_EXECUTABLE
+	};
+
+	//  index into COLUMNS
+	private static final int FILEID = 0;
+	private static final int PARENTID = 1;
+	private static final int NAME = 2;
+	private static final int OWNER = 3;
+	private static final int GROUP_NAME = 4;
+	private static final int FILE_TYPE = 5;
+	private static final int CREATE_TIME = 6;
+	private static final int LAST_ACCESS_DATE = 7;
+	private static final int LAST_MODIFIED_DATE = 8;
+	private static final int LENGTH = 9;
+	private static final int CHUNK_COUNT = 10;
+	private static final int OWNER_READABLE = 11;
+	private static final int OWNER_WRITEABLE = 12;
+	private static final int OWNER_EXECUTABLE = 13;
+	private static final int GROUP_READABLE = 14;
+	private static final int GROUP_WRITEABLE = 15;
+	private static final int GROUP_EXECUTABLE = 16;
+	private static final int OTHER_READABLE = 17;
+	private static final int OTHER_WRITEABLE = 18;
+	private static final int OTHER_EXECUTABLE = 19;
+
+	// result set column for each entry in COLUMNS, 0 = not selected
+	private int [] index = new int[COLUMNS.length];
+
+	JdbcFileRowMapper(ResultSetMetaData md) throws SQLException {
+		for(int idx=1,sz=md.getColumnCount(); idx <= sz; idx++ ) {
+			String f = md.getColumnLabel(idx);
+			if( f==null ) {
+				f = md.getColumnName(idx);
+				if( f == null ) {
+					throw new SQLException("Col "+idx+" has no name");
+				}
+			}
+			f = f.toLowerCase();
+			for (int col = 0; col < COLUMNS.length; col++) {
+				if( COLUMNS[col].equals(f)) {
+					index[col] = idx;
+					break;
+				}
+			}
+		}
+
+		if( index[FILEID] == 0 || index[NAME] == 0 ) {
+			throw new SQLException("fileid and name must be selected");
+		}
+	}
+
+	JdbcFileRow map(ResultSet rs) throws SQLException {
+		JdbcFileRow ret = new JdbcFileRow();
+		int idx;
+
+		ret.fileid = rs.getLong(index[FILEID]);
+		ret.name = rs.getString(index[NAME]);
+		if((idx=index[PARENTID]) > 0) 			ret.parentid = rs.getLong(idx);
+		if((idx=index[OWNER]) > 0) 				ret.owner = getString(rs,idx);
+		if((idx=index[GROUP_NAME]) > 0) 		ret.groupName = getString(rs,idx);
+		if((idx=index[FILE_TYPE]) > 0) 			ret.fileType = getString(rs,idx);
+		if((idx=index[CREATE_TIME]) > 0) 		ret.createTime = getTime(rs,idx);
+		if((idx=index[LAST_ACCESS_DATE]) > 0) 	ret.lastAccessDate = getTime(rs,idx);
+		if((idx=index[LAST_MODIFIED_DATE]) > 0) ret.lastModifiedDate = getTime(rs,idx);
+		if((idx=index[LENGTH]) > 0) 			ret.length = rs.getLong(idx);
+		if((idx=index[CHUNK_COUNT]) > 0) 		ret.chunkCount = rs.getInt(idx);
+		if((idx=index[OWNER_READABLE]) > 0) 	ret.ownerReadable = rs.getBoolean(idx);
+		if((idx=index[OWNER_WRITEABLE]) > 0) 	ret.ownerWriteable = rs.getBoolean(idx);
+		if((idx=index[OWNER_EXECUTABLE]) > 0) 	ret.ownerExecutable = rs.getBoolean(idx);
+		if((idx=index[GROUP_READABLE]) > 0) 	ret.groupReadable = rs.getBoolean(idx);
+		if((idx=index[GROUP_WRITEABLE]) > 0) 	ret.groupWriteable = rs.getBoolean(idx);
+		if((idx=index[GROUP_EXECUTABLE]) > 0) 	ret.groupExecutable = rs.getBoolean(idx);
+		if((idx=index[OTHER_READABLE]) > 0) 	ret.otherReadable = rs.getBoolean(idx);
+		if((idx=index[OTHER_WRITEABLE]) > 0) 	ret.otherWriteable = rs.getBoolean(idx);
+		if((idx=index[OTHER_EXECUTABLE]) > 0) 	ret.otherExecutable = rs.getBoolean(idx);
+
+		return ret;
+	}
+
+	private static String getString(ResultSet rs, int idx) throws SQLException {
+		String ret = rs.getString(idx);
+		return ret == null ? "" : ret;
+	}
+
+	private static long getTime(ResultSet rs, int idx) throws SQLException {
+		Timestamp ret = rs.getTimestamp(idx);
+		return ret == null ? 0 : ret.getTime();
+	}
+
+}
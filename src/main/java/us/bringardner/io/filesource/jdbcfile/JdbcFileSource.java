@@ -2,28 +2,34 @@ package us.bringardner.io.filesource.jdbcfile;
 
 import static us.bringardner.io.filesource.jdbcfile.JdbcFileSourceFactory.seperatorChar;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.annotation.ElementType;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
-import java.lang.reflect.Field;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.swing.ProgressMonitor;
 
@@ -37,44 +43,14 @@ import us.bringardner.io.filesource.ISeekableInputStream;
 
 public class JdbcFileSource extends BaseObject implements FileSource {
 
-	// field 
-	private class FieldValue {		
-		long lastUpdate ;
-		Object value;
-
-		public FieldValue(Object obj) {
-			value = obj;
-			lastUpdate = System.currentTimeMillis();
-		}
-
-		public boolean hasExprired() {
-			return System.currentTimeMillis()-lastUpdate > factory.getFieldTimeToLive();
-		}
-
-	}
-
-	private class NamedField extends FieldValue {
-
-
-		private String name;
-
-		public NamedField(String name,Object obj) {
-			super(obj);
-			this.name = name;
-		}
-
-		@Override
-		public boolean hasExprired() {
-			return System.currentTimeMillis()-lastUpdate > factory.getFieldTimeToLive(name);
-		}
-	}
-
 	private static final long serialVersionUID = 1L;
 	static final String FILE = "file";
 	static final String DIRECTORY = "dir";
 
 
 	static final String NAME = "name";
+	static final String FILEID = "fileid";
+	static final String PARENTID = "parentid";
 	static final String OWNER = "owner";
 	static final String GROUP_NAME = "group_name";
 	static final String CREATE_TIME = "create_time";
@@ -94,89 +70,66 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 	static final String OTHER_WRITEABLE = "other_writeable";
 	static final String OTHER_EXECUTABLE = "other_executable";
 
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target(ElementType.FIELD)
-	public @interface NotAField {
-
-	}
-
-	@NotAField()
 	private  JdbcFileSourceFactory factory;
-	@NotAField()
 	private  Long fileid;
-	@NotAField()
 	private  JdbcFileSource parent;
-	@NotAField()
-	private  NamedField kids;
-	@NotAField()
 	private String name;
+	private JdbcFileRow row;
+	//  prefix sums of the chunk lengths, see getChunkOffsets
+	private long [] chunkOffsets;
 
+	static final String SELECT_ROW = "select * from file_source.file where fileid = ?";
+	static final String SELECT_KIDS = "select * from file_source.file where parentid=?";
 
-	Map<String,FieldValue> fieldCache = new HashMap<>();
-
-
-	private Object getFieldValue(String name) throws IOException {
-		String sql = "select "+name+" from file_source.file where fileid = ?";
-		Object ret = getFieldValue(name,sql);
-		return ret;
-	}
-
-	private Object getFieldValue(String name,String sql) throws IOException {
-		Object ret = null;
+	/**
+	 * Get the file row.  
+	 * The whole row is loaded in one query and is served from the 
+	 * snapshot until the time to live for the named field expires.
+	 * A new JdbcFileSource starts from the snapshot in the factory's path cache.
+	 * 
+	 * @return the row or null if the file does not exist
+	 */
+	JdbcFileRow getRow(String name) throws IOException {
 		if( exists()) {
-			FieldValue val = fieldCache.get(name);
-
-			if( val == null || val.hasExprired() ) {
-				try(Connection con = factory.getConnection()) {
-					try(PreparedStatement pstmt = con.prepareStatement(sql)) {
-						pstmt.setLong(1, fileid);
-						try (ResultSet rs = pstmt.executeQuery()) {
-							if( rs.next()) {
-								ret = rs.getObject(1);
-								fieldCache.put(name, new FieldValue(ret));	
-							}
-						}
-					}
-				} catch (SQLException e) {
-					throw new IOException(e);
-				}
-			} else {
-				ret = val.value;
+			if( row == null ) {
+				row = factory.getPathCache().getRow(getAbsolutePath(), fileid);
+			}
+			if( row == null || row.hasExprired(factory.getFieldTimeToLive(name)) ) {
+				loadRow();
 			}
 		}
 
-		return ret;
+		return row;
 	}
 
-
-
-	private long getTimeValue(String name) throws IOException {
-		long ret = 0;
-		Object tmp = getFieldValue(name);
-		if( tmp != null ) {
-			ret = ((Timestamp)tmp).getTime();
+	private void loadRow() throws IOException {
+		JdbcFileRow tmp = null;
+		try(Connection con = factory.getConnection()) {
+			try(PreparedStatement pstmt = con.prepareStatement(SELECT_ROW)) {
+				pstmt.setLong(1, fileid);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					if( rs.next()) {
+						tmp = factory.getRowMapper(SELECT_ROW, rs).map(rs);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
 		}
-		return ret;
-	}
-
 
-
-	private boolean getBooleanValue(String name) throws IOException {
-		boolean ret = false;
-		Object tmp = getFieldValue(name);
-		if( tmp != null ) {
-			ret = ((Boolean)tmp);
+		if( tmp == null ) {
+			// deleted out from under us
+			fileid = null;
+			factory.getPathCache().invalidate(getAbsolutePath());
+		} else {
+			factory.getPathCache().putRow(getAbsolutePath(), tmp);
 		}
-		return ret;
+		row = tmp;
 	}
 
-	private String getStringValue(String name) throws IOException {
-		String ret = "";
-		Object tmp = getFieldValue(name);
-		if( tmp != null ) {
-			ret = tmp.toString();
-		}
-		return ret;
+	void setRow(JdbcFileRow row) {
+		this.row = row;
+		fileid = row.fileid;
 	}
 
 	protected JdbcFileSource (JdbcFileSource parent,String name) throws IOException {
@@ -238,47 +191,56 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 	
 	@Override
 	public boolean canGroupExecute() throws IOException {
-		return getBooleanValue(GROUP_EXECUTABLE);
+		JdbcFileRow r = getRow(GROUP_EXECUTABLE);
+		return r != null && r.groupExecutable;
 	}
 
 	@Override
 	public boolean canGroupRead() throws IOException {
-		return getBooleanValue(GROUP_READABLE);
+		JdbcFileRow r = getRow(GROUP_READABLE);
+		return r != null && r.groupReadable;
 	}
 
 	@Override
 	public boolean canGroupWrite() throws IOException {
-		return getBooleanValue(GROUP_WRITEABLE);
+		JdbcFileRow r = getRow(GROUP_WRITEABLE);
+		return r != null && r.groupWriteable;
 	}
 
 	@Override
 	public boolean canOtherExecute() throws IOException {
-		return getBooleanValue(OTHER_EXECUTABLE);
+		JdbcFileRow r = getRow(OTHER_EXECUTABLE);
+		return r != null && r.otherExecutable;
 	}
 
 	@Override
 	public boolean canOtherRead() throws IOException {
-		return getBooleanValue(OTHER_READABLE);
+		JdbcFileRow r = getRow(OTHER_READABLE);
+		return r != null && r.otherReadable;
 	}
 
 	@Override
 	public boolean canOtherWrite() throws IOException {
-		return getBooleanValue(OTHER_WRITEABLE);
+		JdbcFileRow r = getRow(OTHER_WRITEABLE);
+		return r != null && r.otherWriteable;
 	}
 
 	@Override
 	public boolean canOwnerExecute() throws IOException {
-		return getBooleanValue(OWNER_EXECUTABLE);
+		JdbcFileRow r = getRow(OWNER_EXECUTABLE);
+		return r != null && r.ownerExecutable;
 	}
 
 	@Override
 	public boolean canOwnerRead() throws IOException {
-		return getBooleanValue(OWNER_READABLE);
+		JdbcFileRow r = getRow(OWNER_READABLE);
+		return r != null && r.ownerReadable;
 	}
 
 	@Override
 	public boolean canOwnerWrite() throws IOException {
-		return getBooleanValue(OWNER_WRITEABLE);
+		JdbcFileRow r = getRow(OWNER_WRITEABLE);
+		return r != null && r.ownerWriteable;
 	}
 
 	@Override
@@ -301,7 +263,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public long creationTime() throws IOException {
-		return getTimeValue(CREATE_TIME);
+		JdbcFileRow r = getRow(CREATE_TIME);
+		return r == null ? 0 : r.createTime;
 	}
 
 	@Override
@@ -312,10 +275,15 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 				throw new IOException("Can't delete directory withg children");
 			}
 
+			//  the row holds the length so the data has to go first, with anything a writer staged
+			executeUpdate("delete from file_source.file_data where fileid = ? or fileid between ? and ?", 
+					fileid, JdbcStagingArea.lowest(fileid), JdbcStagingArea.highest(fileid));
 			String sql = "delete from file_source.file where fileid = ?";
 			if( executeUpdate(sql, fileid)== 1) {
-				truncate();
+				factory.getChunkCache().invalidate(fileid);
 				fileid = null;
+				chunkOffsets = null;
+				factory.getPathCache().invalidateTree(getAbsolutePath());
 				if( parent != null) {
 					parent.dereferenceChilderen();
 				}
@@ -326,9 +294,51 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 		return ret;
 	}
 
+	/**
+	 * Delete this file or directory and everything below it in a single transaction.
+	 * 
+	 * Unlike delete() this does not walk the tree, the file and file_data rows of
+	 * the whole subtree are removed with a few set based statements.
+	 *  
+	 * @return the number of files and directories deleted
+	 * @throws IOException
+	 */
+	public long deleteRecursive() throws IOException {
+		long ret = 0;
+		if( exists()) {
+			if( parent == null ) {
+				throw new IOException("Can't delete the root");
+			}
+
+			try(Connection con = factory.getConnection()) {
+				con.setAutoCommit(false);
+				ret = factory.getTreeDeleter().delete(con, fileid);
+				con.commit();
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+
+			fileid = null;
+			row = null;
+			factory.getPathCache().invalidateTree(getAbsolutePath());
+			//  listings of the deleted directories are no longer reachable by fileid.
+			//  fileids are never reused so cached chunks of deleted files just age out
+			factory.getListingCache().clear();
+		}
+
+		return ret;
+	}
+
 	@Override
 	public void dereferenceChilderen() {
-		kids = null;
+		try {
+			if( exists()) {
+				factory.getListingCache().invalidate(fileid);
+			}
+		} catch (IOException e) {
+			//  can't tell which listing so drop them all
+			factory.getListingCache().clear();
+		}
 	}
 
 	@Override
@@ -339,70 +349,21 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 			return true;
 		}
 
-		boolean ret = false;		
-		long pid = 0;
-
-		if( parent != null ) {
-			// i am root
-			if( !parent.exists()) {
-				return false;
-			} else {
-				pid = parent.fileid;
-			}
-		} 
-
-
-		try(Connection con = factory.getConnection()) {
-			try (PreparedStatement pstmt = con.prepareStatement("select name,fileid from file_source.file where name = ? and parentid=?")){
-				pstmt.setString(1, name);
-				pstmt.setLong(2, pid);
-				try(ResultSet rs = pstmt.executeQuery()) {
-					if( rs.next()) {
-						ret = setFields(rs);
-					}
-				}
-			}
-		} catch (SQLException e) {
-			throw new IOException(e);			
-		}
-
-		return ret;
+		// resolves this file and any unresolved parents in one query
+		return factory.getPathResolver().resolve(this);
 	}
 
-	private boolean setFields(ResultSet rs) throws SQLException {
-		String tmp = rs.getString("name");
-		if( !name.equals(tmp)) {
-			throw new SQLException("name does not match rs name="+name+" rs="+tmp);
-		}
-		ResultSetMetaData md = rs.getMetaData();
-		for(int idx=1,sz=md.getColumnCount(); idx <= sz; idx++ ) {
-			String f = md.getColumnLabel(idx);
-			if( f==null ) {
-				f = md.getColumnName(idx);
-				if( f == null ) {
-					throw new SQLException("Col "+idx+" has no name");
-				}
-			}
-			f = f.toLowerCase();
-			if( NAME.equals(f)) {
-				continue;
-			}
-
-			Object val = rs.getObject(idx);
-			try {
-				Field field = getClass().getDeclaredField(f);
-				field.setAccessible(true);
-				field.set(this, val);
-
-			} catch (NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException e) {
-				throw new SQLException(e);
-			}
-
-		}
+	boolean isResolved() {
+		return fileid != null;
+	}
 
-		return true;
+	void setResolvedFileId(long id) {
+		fileid = id;
 	}
 
+	JdbcFileSource getParentSource() {
+		return parent;
+	}
 
 	@Override
 	public String getAbsolutePath() {
@@ -425,17 +386,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 	}
 
 	public int getChunkCount() throws IOException {
-		int ret = 0;
-		
-		if( fileid != null) {
-			Object tmp = getFieldValue(CHUNK_COUNT,"select count(chunk_number) from file_source.file_data where fileid = ?");
-			if( tmp != null ) {
-				ret = ((Number)tmp).intValue();
-			} 
-		}
-		
-		
-		return ret;
+		JdbcFileRow r = getRow(CHUNK_COUNT);
+		return r == null ? 0 : r.chunkCount;
 	}
 
 	@Override
@@ -453,7 +405,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public long getCreateDate() throws IOException {
-		return getTimeValue(CREATE_TIME);
+		JdbcFileRow r = getRow(CREATE_TIME);
+		return r == null ? 0 : r.createTime;
 	}
 
 	@Override
@@ -467,7 +420,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public GroupPrincipal getGroup() throws IOException {
-		String tmp =  getStringValue(GROUP_NAME);
+		JdbcFileRow r = getRow(GROUP_NAME);
+		String tmp = r == null ? "" : r.groupName;
 		return new GroupPrincipal() {
 
 			@Override
@@ -492,7 +446,7 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 		if( startingPosition>=len) {
 			startingPosition = len;
 		}
-		setLastAccessTime(System.currentTimeMillis());
+		accessed();
 		return new JdbcFileInputStream(this,startingPosition);
 	}
 
@@ -548,7 +502,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public UserPrincipal getOwner() throws IOException {
-		String tmp =  getStringValue(OWNER);
+		JdbcFileRow r = getRow(OWNER);
+		String tmp = r == null ? "" : r.owner;
 		return new UserPrincipal() {
 
 			@Override
@@ -599,14 +554,15 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public boolean isDirectory() throws IOException {
-		return exists() 
-				&& DIRECTORY.equals(getStringValue(JdbcFileSourceFactory.FILE_TYPE));
+		JdbcFileRow r = getRow(JdbcFileSourceFactory.FILE_TYPE);
+		return r != null && DIRECTORY.equals(r.fileType);
 
 	}
 
 	@Override
 	public boolean isFile() throws IOException {
-		return exists() && FILE.equals(getStringValue(JdbcFileSourceFactory.FILE_TYPE));
+		JdbcFileRow r = getRow(JdbcFileSourceFactory.FILE_TYPE);
+		return r != null && FILE.equals(r.fileType);
 	}
 
 	@Override
@@ -616,28 +572,105 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public long lastAccessTime() throws IOException {
-		return getTimeValue(LAST_ACCESS_DATE);
+		JdbcFileRow r = getRow(LAST_ACCESS_DATE);
+		if( r == null ) {
+			return 0;
+		}
+		Long pending = factory.getLazyAccessTimes().get(fileid);
+		return pending == null ? r.lastAccessDate : Math.max(pending, r.lastAccessDate);
+	}
+
+	/**
+	 * Record a read according to the factory's access time policy.
+	 * 
+	 * @throws IOException
+	 */
+	void accessed() throws IOException {
+		long now = System.currentTimeMillis();
+		switch (factory.getAccessTimePolicy()) {
+		case NOATIME:
+			break;
+		case RELATIME:
+			JdbcFileRow r = getRow(LAST_ACCESS_DATE);
+			if( r != null && (r.lastAccessDate <= r.lastModifiedDate || now-r.lastAccessDate >= factory.getRelatimeInterval())) {
+				setLastAccessTime(now);
+			}
+			break;
+		case LAZYTIME:
+			if( exists()) {
+				factory.getLazyAccessTimes().record(fileid, now);
+			}
+			break;
+		default:
+			setLastAccessTime(now);
+			break;
+		}
 	}
 
 	@Override
 	public long lastModified() throws IOException {
-		return getTimeValue(LAST_MODIFIED_DATE);
+		JdbcFileRow r = getRow(LAST_MODIFIED_DATE);
+		return r == null ? 0 : r.lastModifiedDate;
 	}
 
 	@Override
 	public long length() throws IOException {
+		JdbcFileRow r = getRow(LENGTH);
+		return r == null ? 0 : r.length;
+	}
 
-		long ret = 0;
-
-		if( fileid != null) {
-			Object tmp = getFieldValue(LENGTH, "select sum(length) from file_source.file_data where fileid = ?");
-			if( tmp != null ) {
-				if (tmp instanceof Number) {
-					ret = ((Number) tmp).longValue();					
-				} else {
-					throw new IOException("Invalid returnm type for length = "+tmp.getClass());
+	/**
+	 * Compare the length and chunk_count columns of the file row to the 
+	 * values calculated from file_data.
+	 * 
+	 * @param repair - if true and the values do not match, update the file row.
+	 * @return true if the file row was consistent.
+	 * @throws FileNotFoundException if the file is deleted while it is checked
+	 * @throws IOException
+	 */
+	public boolean checkLength(boolean repair) throws IOException {
+		boolean ret = true;
+		if( isFile()) {
+			try(Connection con = factory.getConnection()) {
+				long len = 0;
+				int cnt = 0;
+				try(PreparedStatement pstmt = con.prepareStatement(
+						"select coalesce(sum(length),0), count(chunk_number) from file_source.file_data where fileid = ?")) {
+					pstmt.setLong(1, fileid);
+					try(ResultSet rs = pstmt.executeQuery()) {
+						if( rs.next()) {
+							len = rs.getLong(1);
+							cnt = rs.getInt(2);
+						}
+					}
+				}
+				refresh();
+				chunkOffsets = null;
+				JdbcFileRow r = getRow(LENGTH);
+				if( r == null ) {
+					throw new FileNotFoundException(getAbsolutePath()+" was deleted");
 				}
-			} 
+				if( r.length != len || r.chunkCount != cnt) {
+					ret = false;
+					if( repair ) {
+						try(PreparedStatement pstmt = con.prepareStatement(
+								"update file_source.file set length=?, chunk_count=? where fileid=?")) {
+							pstmt.setLong(1, len);
+							pstmt.setInt(2, cnt);
+							pstmt.setLong(3, fileid);
+							pstmt.executeUpdate();
+						}
+						r.length = len;
+						r.chunkCount = cnt;
+						factory.getPathCache().invalidateRow(getAbsolutePath());
+						if( parent != null ) {
+							parent.dereferenceChilderen();
+						}
+					}
+				}
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
 		}
 
 		return ret;
@@ -660,10 +693,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 	@Override
 	public String[] list(FileSourceFilter filter) throws IOException {
 		List<String> ret = new ArrayList<>();
-		for(FileSource file:listFiles()) {
-			if(filter.accept(file)) {
-				ret.add(file.getName());
-			}
+		for(FileSource file:listFiles(filter)) {
+			ret.add(file.getName());
 		}
 
 
@@ -672,38 +703,37 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public FileSource[] listFiles() throws IOException {
-		if( kids == null || isDirectory() || kids.hasExprired()) {
-			String sql = "select name,fileid from file_source.file where parentid=?";
+		if( !isDirectory()) {
+			return new JdbcFileSource[0];
+		}
 
-			try {
-				try(Connection con = factory.getConnection()) {
-					try(PreparedStatement pstmt = con.prepareStatement(sql)) {
-						pstmt.setLong(1, fileid);
-						try(ResultSet rs = pstmt.executeQuery()) {
-							List<JdbcFileSource> list = new ArrayList<>();
-							while(rs.next()) {
-								String nm = rs.getString(NAME);
-								JdbcFileSource kid = new JdbcFileSource(this, nm);
-								kid.setFields(rs);
-								list.add(kid);
-							}
-							kids= new NamedField(JdbcFileSourceFactory.KIDS,list.toArray(new JdbcFileSource[list.size()]));
-						}
-					}
-				}
-			} catch(SQLException e) {
-				throw new IOException(e);
-			}
+		//  the rows are shared by the factory so each kid gets a copy
+		List<JdbcFileRow> rows = factory.getListingCache().getKids(fileid);
+		JdbcFileSource [] ret = new JdbcFileSource[rows.size()];
+		for (int idx = 0; idx < ret.length; idx++) {
+			JdbcFileRow r = rows.get(idx);
+			ret[idx] = new JdbcFileSource(this, r.name);
+			ret[idx].setRow(r.copy());
 		}
-		return ((JdbcFileSource[])kids.value);
+
+		return ret;
 	}
 
 	@Override
 	public FileSource[] listFiles(FileSourceFilter filter) throws IOException {
 		List<FileSource> list = new ArrayList<>();
-		for(FileSource file : listFiles()) {
-			if(filter.accept(file)) {
-				list.add(file);
+		if (filter instanceof JdbcSqlFilter) {
+			//  only read the matching rows
+			try {
+				iterateFiles((JdbcSqlFilter) filter).forEachRemaining(list::add);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		} else {
+			for(FileSource file : listFiles()) {
+				if(filter.accept(file)) {
+					list.add(file);
+				}
 			}
 		}
 		return list.toArray(new JdbcFileSource[list.size()]);
@@ -711,8 +741,84 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	@Override
 	public FileSource[] listFiles(ProgressMonitor monitor) throws IOException {
-		// TODO:  add monitoring
-		return listFiles();
+		if( monitor == null || !isDirectory()) {
+			return listFiles();
+		}
+
+		monitor.setMinimum(0);
+		monitor.setMaximum((int)Math.min(Integer.MAX_VALUE,getChildCount()));
+		List<JdbcFileSource> list = new ArrayList<>();
+		JdbcDirectoryIterator it = iterateFiles();
+		try {
+			while(!monitor.isCanceled() && it.hasNext()) {
+				list.add(it.next());
+				monitor.setProgress((int)Math.min(Integer.MAX_VALUE,it.getCount()));
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			monitor.close();
+		}
+
+		return list.toArray(new JdbcFileSource[list.size()]);
+	}
+
+	/**
+	 * Iterate the children of this directory a page at a time (see JdbcFileSourceFactory.setListPageSize).
+	 * Unlike listFiles() this is not cached and uses constant memory. 
+	 *  
+	 * @return an iterator (empty if this is not a directory)
+	 * @throws IOException
+	 */
+	public JdbcDirectoryIterator iterateFiles() throws IOException {
+		return new JdbcDirectoryIterator(this, factory.getListPageSize());
+	}
+
+	/**
+	 * Iterate the children of this directory that match the filter. 
+	 * The filter is translated to SQL so only the matching rows are read.
+	 * 
+	 * @param filter
+	 * @return an iterator (empty if this is not a directory)
+	 * @throws IOException
+	 */
+	public JdbcDirectoryIterator iterateFiles(JdbcSqlFilter filter) throws IOException {
+		return new JdbcDirectoryIterator(this, factory.getListPageSize(),filter);
+	}
+
+	/**
+	 * 
+	 * @return a sequential stream of the children of this directory, ordered by name.
+	 * @throws IOException
+	 */
+	public Stream<JdbcFileSource> streamFiles() throws IOException {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(iterateFiles(), Spliterator.ORDERED|Spliterator.NONNULL|Spliterator.DISTINCT)
+				, false);
+	}
+
+	/**
+	 * 
+	 * @return the number of children in this directory
+	 * @throws IOException
+	 */
+	public long getChildCount() throws IOException {
+		long ret = 0;
+		if( isDirectory()) {
+			try(Connection con = factory.getConnection()) {
+				try(PreparedStatement pstmt = con.prepareStatement("select count(*) from file_source.file where parentid = ?")) {
+					pstmt.setLong(1, fileid);
+					try(ResultSet rs = pstmt.executeQuery()) {
+						if( rs.next()) {
+							ret = rs.getLong(1);
+						}
+					}
+				}
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+		return ret;
 	}
 
 	@Override
@@ -739,7 +845,9 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 		String sql = "insert into file_source.file (name,parentid,owner,file_type) values(?,?,?,?)";
 
 		long pid = parent == null ? 0 : parent.fileid;
-		return executeUpdate(sql, name,pid,owner,file_type) == 1;
+		boolean ret = executeUpdate(sql, name,pid,owner,file_type) == 1;
+		factory.getPathCache().invalidate(getAbsolutePath());
+		return ret;
 	}
 
 
@@ -757,8 +865,13 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 		return ret;
 	}
 
+	/**
+	 * Discard the row snapshot so the next access reads the file row again.
+	 */
 	@Override
 	public void refresh() throws IOException {
+		row = null;
+		factory.getPathCache().invalidateRow(getAbsolutePath());
 	}
 
 	@Override
@@ -774,6 +887,10 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 						String sql = "update file_source.file set parentid = ? , name = ? where fileid=?";
 						if((executeUpdate(sql, file.parent.fileid,file.name,fileid)==1)) {
 							fileid = null;
+							JdbcPathCache cache = factory.getPathCache();
+							cache.invalidateTree(getAbsolutePath());
+							cache.invalidate(file.getAbsolutePath());
+							file.parent.dereferenceChilderen();
 							ret = arg0.exists();
 						}
 					}
@@ -784,6 +901,67 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 		return ret;
 	}
 
+	/**
+	 * Copy this file or directory tree to target. 
+	 * 
+	 * When target belongs to the same factory the rows and data are copied inside the database 
+	 * in a single transaction, otherwise the data is streamed to the target.
+	 *  
+	 * @param target must not exist
+	 * @return true if the copy was made
+	 * @throws IOException
+	 */
+	public boolean copyTo(FileSource target) throws IOException {
+		boolean ret = false;
+
+		if( exists() && !target.exists()) {
+			if( target instanceof JdbcFileSource && ((JdbcFileSource)target).factory == factory) {
+				JdbcFileSource file = (JdbcFileSource) target;
+				String path = getAbsolutePath();
+				if( file.getAbsolutePath().startsWith(path.endsWith(JdbcFileSourceFactory.seperator) ? path : path+JdbcFileSourceFactory.seperator)) {
+					throw new IOException("Can't copy "+path+" into itself");
+				}
+				//  Can't copy to root
+				if( file.parent != null && file.parent.mkdirs() && file.parent.exists()) {
+					try(Connection con = factory.getConnection()) {
+						con.setAutoCommit(false);
+						long id = factory.getTreeCopier().copy(con, fileid, file.parent.fileid, file.name);
+						con.commit();
+						factory.getPathCache().invalidate(file.getAbsolutePath());
+						file.setResolvedFileId(id);
+					} catch (SQLException e) {
+						throw new IOException(e);
+					}
+					file.parent.dereferenceChilderen();
+					ret = true;
+				}
+			} else {
+				ret = streamTo(target);
+			}
+		}
+
+		return ret;
+	}
+
+	private boolean streamTo(FileSource target) throws IOException {
+		if( isDirectory()) {
+			if( !target.mkdirs()) {
+				return false;
+			}
+			for(FileSource kid : listFiles()) {
+				if( !((JdbcFileSource)kid).streamTo(target.getChild(kid.getName()))) {
+					return false;
+				}
+			}
+		} else {
+			try(InputStream in = getInputStream();
+					OutputStream out = target.getOutputStream()) {
+				in.transferTo(out);
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public boolean setCreateTime(long arg0) throws IOException {
 		if( exists()) {
@@ -847,7 +1025,12 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 				}
 				ret = pstmt.executeUpdate();
 			}
-			fieldCache.clear();
+			row = null;
+			factory.getPathCache().invalidateRow(getAbsolutePath());
+			if( parent != null ) {
+				//  the parent's listing holds a copy of our row
+				parent.dereferenceChilderen();
+			}
 		} catch (SQLException e) {
 			throw new IOException(e);
 		}
@@ -1074,17 +1257,11 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 
 	public long length(boolean refreash) throws IOException {
 		if( refreash ) {
-			removeCache(LENGTH,CHUNK_COUNT);
+			refresh();
 		}
 		return length();
 	}
 
-	private void removeCache(String ... args) {
-		for(String name : args) {
-			fieldCache.remove(name);
-		}		
-	}
-
 	public void truncate() throws IOException  {
 
 		long len = length();
@@ -1096,12 +1273,21 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 					pstmt.executeUpdate();					
 				}
 
-				
-				// field 
-				setFieldCache(LENGTH,0);
-				setFieldCache(CHUNK_COUNT,0);
-				setFieldCache(LAST_ACCESS_DATE, time);
-				setFieldCache(LAST_MODIFIED_DATE, time);
+				try(PreparedStatement pstmt = con.prepareStatement(
+						"update file_source.file set chunk_count=0, length=0, "+LAST_ACCESS_DATE+"=?, "+LAST_MODIFIED_DATE+"=? where fileid=?")) {
+					pstmt.setTimestamp(1, time);
+					pstmt.setTimestamp(2, time);
+					pstmt.setLong(3, fileid);
+					pstmt.executeUpdate();
+				}
+
+				if( row != null ) {
+					row.length = 0;
+					row.chunkCount = 0;
+				}
+				chunkOffsets = null;
+				factory.getChunkCache().invalidate(fileid);
+				setModifiedTime(time.getTime());
 			} catch (SQLException e) {
 				throw new IOException(e);
 			}
@@ -1109,12 +1295,97 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 	}
 
 
-	private void setFieldCache(String name, Object value) {
-		fieldCache.put(name, new FieldValue(value));		
+	/**
+	 * Bring the file row up to date after an output stream inserted chunks into file_data itself.
+	 * The caller owns the transaction and calls chunksChanged() once it is committed.
+	 * 
+	 * @param con the connection used for the inserts
+	 * @param length
+	 * @param chunkCount
+	 * @throws SQLException
+	 */
+	void updateLength(Connection con, long length, int chunkCount) throws SQLException {
+		Timestamp time = new Timestamp(System.currentTimeMillis());
+		try(PreparedStatement pstmt = con.prepareStatement(
+				"update file_source.file set chunk_count=?, length=?, "+LAST_ACCESS_DATE+"=?, "+LAST_MODIFIED_DATE+"=? where fileid=?")) {
+			pstmt.setInt(1, chunkCount);
+			pstmt.setLong(2, length);
+			pstmt.setTimestamp(3, time);
+			pstmt.setTimestamp(4, time);
+			pstmt.setLong(5, fileid);
+			pstmt.executeUpdate();
+		}
+		if( row != null ) {
+			row.length = length;
+			row.chunkCount = chunkCount;
+		}
+		setModifiedTime(time.getTime());
+	}
+
+	/**
+	 * Lock the file row until the caller's transaction ends. Writers take the lock before they 
+	 * move chunks into file_data so concurrent writers of one file are applied one at a time.
+	 * 
+	 * @param con
+	 * @return the committed length and chunk_count, null when the row has been deleted
+	 * @throws SQLException
+	 */
+	long [] lockLength(Connection con) throws SQLException {
+		try(PreparedStatement pstmt = con.prepareStatement(
+				"select length, chunk_count from file_source.file where fileid=? for update")) {
+			pstmt.setLong(1, fileid);
+			try(ResultSet rs = pstmt.executeQuery()) {
+				return rs.next() ? new long[] {rs.getLong(1), rs.getLong(2)} : null;
+			}
+		}
+	}
+
+	/**
+	 * Forget the chunk offsets and cached chunks after an output stream changed file_data.
+	 */
+	void chunksChanged() {
+		chunkOffsets = null;
+		factory.getChunkCache().invalidate(fileid);
+		if( parent != null ) {
+			parent.dereferenceChilderen();
+		}
+	}
+
+	static void bindData(PreparedStatement pstmt, int idx, byte [] data, int off, int length) throws SQLException {
+		if( off == 0 && length == data.length) {
+			pstmt.setBytes(idx, data);
+		} else {
+			pstmt.setBinaryStream(idx, new ByteArrayInputStream(data, off, length), length);
+		}
+	}
+
+	private void setModifiedTime(long time) {
+		//  only this instance's snapshot is kept up to date
+		factory.getPathCache().invalidateRow(getAbsolutePath());
+		if( row != null ) {
+			row.lastAccessDate = time;
+			row.lastModifiedDate = time;
+		}
 	}
 
 	public void appendData(int length,byte[] data) throws IOException {
+		appendData(data, 0, length);
+	}
+
+	/**
+	 * Append data[off, off+length) as a new chunk. A slice of a larger array is bound 
+	 * as a stream so the bytes are not copied.
+	 * 
+	 * @param data
+	 * @param off
+	 * @param length
+	 * @throws IOException
+	 */
+	public void appendData(byte[] data, int off, int length) throws IOException {
+		Objects.checkFromIndexSize(off, length, data.length);
 		long chunk = getChunkCount()+1;
+		//  a dangling row from an aborted write may be cached
+		factory.getChunkCache().invalidate(fileid, chunk);
 		try(Connection con = factory.getConnection()) {
 			try(PreparedStatement pstmt = con.prepareStatement("insert into file_source.file_data "
 					+ "(chunk_number,fileid,length,data) "
@@ -1123,7 +1394,7 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 				pstmt.setLong(1, chunk);
 				pstmt.setLong(2, fileid);
 				pstmt.setInt(3, length);
-				pstmt.setBytes(4, data);
+				bindData(pstmt, 4, data, off, length);
 
 				try {					 
 					if(pstmt.executeUpdate()!=1) {
@@ -1140,6 +1411,8 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 							pstmt2.setLong(2, fileid);
 
 							if( pstmt2.executeUpdate()==1) {
+								//  a stream can only be read once
+								bindData(pstmt, 4, data, off, length);
 								if(pstmt.executeUpdate()!=1) {
 									throw new IOException("Could not insert chunk="+chunk);
 								}		
@@ -1163,9 +1436,12 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 					throw new IOException("Counld not update chunk count");
 				}
 			}
-			removeCache(LENGTH,CHUNK_COUNT);
-			setFieldCache(LAST_ACCESS_DATE, time);
-			setFieldCache(LAST_MODIFIED_DATE, time);
+			if( row != null ) {
+				row.length += length;
+				row.chunkCount = (int)chunk;
+			}
+			chunkOffsets = null;
+			setModifiedTime(time.getTime());
 		} catch (SQLException e) {
 			throw new IOException(e);
 		}
@@ -1176,6 +1452,14 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 		byte [] ret = null;
 		int max = getChunkCount();
 		if( max >= chunk) {
+			JdbcChunkCache cache = factory.getChunkCache();
+			if( cache.isEnabled()) {
+				ret = cache.get(fileid, chunk);
+				if( ret != null ) {
+					return ret;
+				}
+			}
+			long generation = cache.getGeneration();
 			try(Connection con = factory.getConnection()) {
 				try(PreparedStatement pstmt = con.prepareStatement(
 						"select length,data from file_source.file_data where chunk_number=? and fileid=? ")) {
@@ -1187,10 +1471,13 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 							byte [] tmp = rs.getBytes(2);
 							if( len != tmp.length) {
 								byte tmp2 [] = new byte[len];
-								System.arraycopy(tmp2,0,tmp,0,len);
+								System.arraycopy(tmp,0,tmp2,0,len);
 								tmp = tmp2;
 							}
 							ret = tmp;
+							if( cache.isEnabled()) {
+								cache.put(fileid, chunk, ret, generation);
+							}
 						}
 					}
 				}	
@@ -1203,6 +1490,242 @@ public class JdbcFileSource extends BaseObject implements FileSource {
 	}
 
 
+	/**
+	 * The offsets are cached on this object and reused while the file row's length
+	 * and chunk_count still match them. Callers must not modify the array.
+	 * 
+	 * @return the offset of the first byte of each chunk, element n-1 is the start of chunk n and the last element is the length of the file.
+	 * @throws IOException
+	 */
+	public long [] getChunkOffsets() throws IOException {
+		if( !exists()) {
+			return new long[1];
+		}
+
+		long [] ret = cachedChunkOffsets();
+		if( ret != null ) {
+			return ret;
+		}
+
+		List<Long> lengths = new ArrayList<>();
+		try(Connection con = factory.getConnection()) {
+			try(PreparedStatement pstmt = con.prepareStatement(
+					"select length from file_source.file_data where fileid=? order by chunk_number")) {
+				pstmt.setLong(1, fileid);
+				try(ResultSet rs = pstmt.executeQuery()) {
+					while( rs.next()) {
+						lengths.add(rs.getLong(1));
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+
+		ret = new long[lengths.size()+1];
+		for (int idx = 0,sz=lengths.size(); idx < sz; idx++) {
+			ret[idx+1] = ret[idx]+lengths.get(idx);
+		}
+		chunkOffsets = ret;
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @return the offsets from the last getChunkOffsets() if they still match the file row, otherwise null
+	 * @throws IOException
+	 */
+	long [] cachedChunkOffsets() throws IOException {
+		long [] ret = chunkOffsets;
+		if( ret == null ) {
+			return null;
+		}
+		JdbcFileRow r = getRow(LENGTH);
+		return r != null && ret.length-1 == r.chunkCount && ret[ret.length-1] == r.length ? ret : null;
+	}
+
+	/**
+	 * Read a byte range, fetching only the chunks that cover it. Large ranges are read 
+	 * concurrently over the factory's parallel read connections.
+	 * 
+	 * @param position of the first byte to read
+	 * @param length the maximum number of bytes to read
+	 * @param dst
+	 * @return the number of bytes read or -1 if position is at or past the end of the file
+	 * @throws IOException
+	 */
+	public long readRange(long position, long length, ByteBuffer dst) throws IOException {
+		if( !isFile()) {
+			throw new IOException("Not a file");
+		}
+		accessed();
+		return new JdbcRangeReader(this).read(position, length, dst);
+	}
+
+	/**
+	 * Read bytes [position, position+len) with a single query for the chunks that cover them.
+	 * 
+	 * @param position of the first byte to read
+	 * @param dst
+	 * @param off
+	 * @param len
+	 * @return the number of bytes read, less than len only at the end of the file, or -1 if position is at or past the end of the file
+	 * @throws IOException
+	 */
+	public int read(long position, byte [] dst, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, dst.length);
+		return read(ByteBuffer.wrap(dst, off, len), position);
+	}
+
+	/**
+	 * Read from position into the remaining space of dst, like FileChannel.read(ByteBuffer, long).
+	 * 
+	 * @param dst
+	 * @param position
+	 * @return the number of bytes read or -1 if position is at or past the end of the file
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if( position < 0 ) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		if( !isFile()) {
+			throw new IOException("Not a file");
+		}
+		accessed();
+		return (int) new JdbcRangeReader(this).read(position, dst.remaining(), dst, 1);
+	}
+
+	/**
+	 * Write the whole file to out, one write per chunk.
+	 * 
+	 * @param out
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		try(JdbcFileInputStream in = (JdbcFileInputStream) getInputStream()) {
+			return in.transferTo(out);
+		}
+	}
+
+	/**
+	 * Write the whole file to target. Files large enough to split across the factory's 
+	 * parallel read connections are read ahead with readRange, others are written one chunk at a time.
+	 * 
+	 * @param target
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		if( !isFile()) {
+			throw new IOException("Not a file");
+		}
+
+		if( factory.getParallelReads() <= 1 || getChunkCount() < 2*JdbcRangeReader.MIN_CHUNKS_PER_READER ) {
+			try(JdbcFileInputStream in = (JdbcFileInputStream) getInputStream()) {
+				return in.transferTo(target);
+			}
+		}
+
+		accessed();
+		long size = length();
+		int window = (int) Math.min(size, (long)Math.max(1, factory.getParallelReads())*JdbcRangeReader.MIN_CHUNKS_PER_READER*factory.getChunk_size());
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(1, window));
+		JdbcRangeReader reader = new JdbcRangeReader(this);
+		long ret = 0;
+		long got;
+		while( (got=reader.read(ret, buffer.capacity(), buffer)) > 0 ) {
+			buffer.flip();
+			while( buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			buffer.clear();
+			ret += got;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Replace the content of this file with the remaining bytes of src. Large buffers are 
+	 * inserted concurrently over the factory's parallel write connections.
+	 * 
+	 * @param src it's position is moved to it's limit
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferFrom(ByteBuffer src) throws IOException {
+		prepareWrite();
+		return new JdbcParallelWriter(this).write(src);
+	}
+
+	/**
+	 * Replace the content of this file with src from it's position to it's size. Large sources are 
+	 * inserted concurrently over the factory's parallel write connections. A FileChannel is read 
+	 * with positional reads, other channels are read one chunk at a time.
+	 * 
+	 * @param src it's position is moved to it's size
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferFrom(SeekableByteChannel src) throws IOException {
+		prepareWrite();
+		return new JdbcParallelWriter(this).write(src);
+	}
+
+	/**
+	 * Replace the content of this file with a local file.
+	 * 
+	 * @param src
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferFrom(Path src) throws IOException {
+		try(FileChannel channel = FileChannel.open(src, StandardOpenOption.READ)) {
+			return transferFrom(channel);
+		}
+	}
+
+	private void prepareWrite() throws IOException {
+		if(isDirectory()) {
+			throw new IOException("Cannot write to a directory");
+		}
+		if( !exists()) {
+			if( !createNewFile() || !exists()) {
+				throw new IOException("Can't create the file ");
+			}
+			// this is a file so it always has a parent
+			parent.dereferenceChilderen();
+		}
+	}
+
+	/**
+	 * 
+	 * @param offsets from getChunkOffsets
+	 * @param position
+	 * @return the number of the chunk holding position or chunk count + 1 if position is at or past the end
+	 */
+	public static int findChunk(long [] offsets, long position) {
+		int count = offsets.length-1;
+		if( position >= offsets[count]) {
+			return count+1;
+		}
+
+		//  the last chunk starting at or before position, skipping empty chunks
+		int low = 0;
+		int high = count-1;
+		while( low < high ) {
+			int mid = (low+high+1) >>> 1;
+			if( offsets[mid] <= position) {
+				low = mid;
+			} else {
+				high = mid-1;
+			}
+		}
+		return low+1;
+	}
+
 	@Override
 	public IRandomAccessStream getRandomAccessStream(String mode) throws IOException {
 		return new FileSourceRandomAccessStream(new JdbcRandomAccessIoController(this), mode);
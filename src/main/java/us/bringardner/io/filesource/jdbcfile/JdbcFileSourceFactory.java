@@ -34,10 +34,20 @@ import java.awt.Component;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import us.bringardner.database.pool.JdbcConnectionPool;
 import us.bringardner.database.pool.ObjectPool;
@@ -52,6 +62,19 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 
 	private static final long serialVersionUID = 1L;
 
+	//  Semaphore.reducePermits is protected, the budget has to shrink under open streams
+	private static class PrefetchBudget extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		PrefetchBudget(int permits) {
+			super(permits);
+		}
+
+		void reduce(int permits) {
+			reducePermits(permits);
+		}
+	}
+
 	public static final String FACTORY_ID = "Jdbc";
 
 	public static final String JDBC_DRIVER = "jdbcDriver";
@@ -86,6 +109,9 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 
 	public static final String DBID_PROP = "JdbcFile.dbid";
 	public  static final String KIDS = "kids";
+	public  static final String PATHS = "paths";
+	public  static final int DEFAULT_PATH_CACHE_SIZE = 10000;
+	public  static final int DEFAULT_LISTING_CACHE_SIZE = 1000;
 
 
 
@@ -116,6 +142,34 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 	private int fieldTimeToLive = 500;
 	private Map<String,Integer> timeToLiveMap = new HashMap<>();
 	private int chunk_size = 1024*100;
+	private JdbcPathResolver pathResolver = new JdbcPathResolver(this);
+	private JdbcPathCache pathCache = new JdbcPathCache(this, DEFAULT_PATH_CACHE_SIZE);
+	private Map<String,JdbcFileRowMapper> rowMappers = new ConcurrentHashMap<>();
+	private JdbcListingCache listingCache = new JdbcListingCache(this, DEFAULT_LISTING_CACHE_SIZE);
+	private transient ScheduledExecutorService scheduler;
+	private transient ScheduledFuture<?> listingRefresher;
+	private transient ExecutorService executor;
+	private long listingRefreshInterval = 0;
+	private int listPageSize = 1000;
+	private JdbcTreeDeleter treeDeleter = new JdbcTreeDeleter(this);
+	private JdbcTreeCopier treeCopier = new JdbcTreeCopier(this);
+	private transient JdbcStagingArea stagingArea = new JdbcStagingArea();
+	private Boolean recursiveQuerySupported;
+	private boolean cursorReads = false;
+	private int readFetchSize = 8;
+	private int prefetchDepth = 0;
+	private int parallelReads = 4;
+	private int parallelWrites = 4;
+	private int writeBatchSize = 8;
+	private int writeBehindDepth = 0;
+	private boolean atomicWrites = true;
+	private JdbcChunkCache chunkCache = new JdbcChunkCache(0);
+	private JdbcAccessTimePolicy accessTimePolicy = JdbcAccessTimePolicy.STRICT;
+	private long relatimeInterval = TimeUnit.DAYS.toMillis(1);
+	private long lazyTimeFlushInterval = 10000;
+	private transient JdbcLazyAccessTimes lazyAccessTimes = new JdbcLazyAccessTimes(this);
+	private int prefetchMemory = 64*1024*1024;
+	private transient PrefetchBudget prefetchBudget = new PrefetchBudget(prefetchMemory);
 
 	
 	/**
@@ -126,6 +180,7 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 		setConnectionProperties(_connectProperties);	
 		setFieldTimeToLive(KIDS, 1000);
 		setFieldTimeToLive(FILE_TYPE, 100000);		
+		setFieldTimeToLive(PATHS, 5000);
 	}
 
 	
@@ -139,6 +194,437 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 	}
 
 
+	public JdbcPathResolver getPathResolver() {
+		return pathResolver;
+	}
+
+
+	public JdbcPathCache getPathCache() {
+		return pathCache;
+	}
+
+
+	/**
+	 * Set the maximum number of paths held in the factory wide path cache.
+	 * The time to live is set with setFieldTimeToLive(PATHS, ttl).
+	 *  
+	 * @param size (0 disables the cache)
+	 */
+	public void setPathCacheSize(int size) {
+		pathCache.setMaxSize(size);
+	}
+
+
+	public int getPathCacheSize() {
+		return pathCache.getMaxSize();
+	}
+
+
+	public JdbcListingCache getListingCache() {
+		return listingCache;
+	}
+
+
+	/**
+	 * Set the maximum number of directory listings held in the factory wide listing cache.
+	 * The time to live is set with setFieldTimeToLive(KIDS, ttl).
+	 *  
+	 * @param size (0 disables the cache)
+	 */
+	public void setListingCacheSize(int size) {
+		listingCache.setMaxSize(size);
+	}
+
+
+	public int getListingCacheSize() {
+		return listingCache.getMaxSize();
+	}
+
+
+	/**
+	 * 
+	 * @return true if the database supports recursive common table expressions (detected from the driver meta data unless set)
+	 * @throws IOException
+	 */
+	public synchronized boolean isRecursiveQuerySupported() throws IOException {
+		if( recursiveQuerySupported == null ) {
+			try(Connection con = getConnection()) {
+				DatabaseMetaData md = con.getMetaData();
+				String product = md.getDatabaseProductName().toLowerCase();
+				recursiveQuerySupported = product.contains("postgres")
+						|| product.contains("hsql")
+						|| product.contains("h2")
+						|| product.contains("sqlite")
+						|| product.contains("mariadb")
+						|| (product.contains("mysql") && md.getDatabaseMajorVersion() >= 8);
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+		return recursiveQuerySupported;
+	}
+
+	/**
+	 * Override the detected support for recursive common table expressions.
+	 * @param supported
+	 */
+	public synchronized void setRecursiveQuerySupported(boolean supported) {
+		recursiveQuerySupported = supported;
+	}
+
+	JdbcTreeDeleter getTreeDeleter() {
+		return treeDeleter;
+	}
+
+	JdbcTreeCopier getTreeCopier() {
+		return treeCopier;
+	}
+
+	JdbcStagingArea getStagingArea() {
+		return stagingArea;
+	}
+
+	public int getListPageSize() {
+		return listPageSize;
+	}
+
+
+	/**
+	 * Set the number of rows read per query (and the driver fetch size) 
+	 * when iterating a directory with JdbcFileSource.iterateFiles(). 
+	 * 
+	 * @param listPageSize
+	 */
+	public void setListPageSize(int listPageSize) {
+		this.listPageSize = listPageSize;
+	}
+
+
+	public boolean isCursorReads() {
+		return cursorReads;
+	}
+
+
+	/**
+	 * When true input streams read all of a file's chunks through a single ordered cursor 
+	 * and hold a pooled connection, with a transaction open, until they are closed or reach 
+	 * the end. A stream that is dropped part way through without close() keeps both, so 
+	 * only turn this on when every stream is closed.
+	 * When false (the default) each chunk is read with it's own query.
+	 * 
+	 * @param cursorReads
+	 */
+	public void setCursorReads(boolean cursorReads) {
+		this.cursorReads = cursorReads;
+	}
+
+
+	public int getReadFetchSize() {
+		return readFetchSize;
+	}
+
+
+	/**
+	 * Set the number of chunks the driver fetches per round trip on an input stream cursor.
+	 * 
+	 * @param readFetchSize
+	 */
+	public void setReadFetchSize(int readFetchSize) {
+		this.readFetchSize = readFetchSize;
+	}
+
+
+	public JdbcAccessTimePolicy getAccessTimePolicy() {
+		return accessTimePolicy;
+	}
+
+
+	/**
+	 * Set when reads update a file's last access time. The default, STRICT, updates the file 
+	 * row on every read as this factory always has. RELATIME, NOATIME or LAZYTIME take that 
+	 * update off the read path. Explicit calls to setLastAccessTime always update the file row.
+	 * 
+	 * @param accessTimePolicy
+	 */
+	public void setAccessTimePolicy(JdbcAccessTimePolicy accessTimePolicy) {
+		this.accessTimePolicy = accessTimePolicy;
+	}
+
+
+	public long getRelatimeInterval() {
+		return relatimeInterval;
+	}
+
+
+	/**
+	 * Under RELATIME, update an access time that is after the modified time once it is this old (one day by default).
+	 * 
+	 * @param millis
+	 */
+	public void setRelatimeInterval(long millis) {
+		relatimeInterval = millis;
+	}
+
+
+	public long getLazyTimeFlushInterval() {
+		return lazyTimeFlushInterval;
+	}
+
+
+	/**
+	 * Set how often access times recorded under LAZYTIME are written to the database.
+	 * 
+	 * @param millis
+	 */
+	public void setLazyTimeFlushInterval(long millis) {
+		lazyTimeFlushInterval = millis;
+	}
+
+
+	public synchronized JdbcLazyAccessTimes getLazyAccessTimes() {
+		if( lazyAccessTimes == null ) {
+			lazyAccessTimes = new JdbcLazyAccessTimes(this);
+		}
+		return lazyAccessTimes;
+	}
+
+
+	public JdbcChunkCache getChunkCache() {
+		return chunkCache;
+	}
+
+
+	/**
+	 * Set the number of bytes of file_data chunks cached for all readers of this factory (0, the default, disables the cache).
+	 * Only writes made through this factory invalidate cached chunks.
+	 * 
+	 * @param bytes
+	 */
+	public void setChunkCacheSize(long bytes) {
+		chunkCache.setMaxBytes(bytes);
+	}
+
+
+	public long getChunkCacheSize() {
+		return chunkCache.getMaxBytes();
+	}
+
+
+	/**
+	 * Keep cached chunks in direct buffers, off the heap.
+	 * 
+	 * @param direct
+	 */
+	public void setChunkCacheDirect(boolean direct) {
+		chunkCache.setDirect(direct);
+	}
+
+
+	public boolean isChunkCacheDirect() {
+		return chunkCache.isDirect();
+	}
+
+
+	public boolean isAtomicWrites() {
+		return atomicWrites;
+	}
+
+
+	/**
+	 * When true output streams stage their chunks and replace or extend the file 
+	 * in one transaction on close, so readers never see a partly written file.
+	 * 
+	 * @param atomicWrites
+	 */
+	public void setAtomicWrites(boolean atomicWrites) {
+		this.atomicWrites = atomicWrites;
+	}
+
+
+	public int getWriteBehindDepth() {
+		return writeBehindDepth;
+	}
+
+
+	/**
+	 * Set the number of full chunks an output stream can queue for a background thread 
+	 * to insert while the caller fills the next one (0, the default, inserts on the caller's thread).
+	 * 
+	 * @param writeBehindDepth
+	 */
+	public void setWriteBehindDepth(int writeBehindDepth) {
+		this.writeBehindDepth = writeBehindDepth;
+	}
+
+
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+
+	/**
+	 * Set the number of chunks an output stream inserts per JDBC batch.
+	 * 
+	 * @param writeBatchSize
+	 */
+	public void setWriteBatchSize(int writeBatchSize) {
+		this.writeBatchSize = writeBatchSize;
+	}
+
+
+	public int getParallelWrites() {
+		return parallelWrites;
+	}
+
+
+	/**
+	 * Set the most connections JdbcFileSource.transferFrom uses to insert a file's chunks concurrently.
+	 * 
+	 * @param parallelWrites
+	 */
+	public void setParallelWrites(int parallelWrites) {
+		this.parallelWrites = parallelWrites;
+	}
+
+
+	public int getParallelReads() {
+		return parallelReads;
+	}
+
+
+	/**
+	 * Set the number of connections used to read a large byte range concurrently 
+	 * (JdbcFileSource.readRange and transferTo). 1 disables parallel reads.
+	 * 
+	 * @param parallelReads
+	 */
+	public void setParallelReads(int parallelReads) {
+		this.parallelReads = parallelReads;
+	}
+
+
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+
+	/**
+	 * Set the number of chunks an input stream reads ahead on a background thread 
+	 * while the caller consumes the current one (0, the default, disables read ahead).
+	 * 
+	 * @param prefetchDepth
+	 */
+	public void setPrefetchDepth(int prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+	}
+
+
+	public synchronized int getPrefetchMemory() {
+		return prefetchMemory;
+	}
+
+
+	/**
+	 * Cap the memory, in bytes, held by read ahead chunks across all of this factory's streams.
+	 * The budget shared with open streams is resized, a smaller cap takes effect as they give back memory.
+	 * 
+	 * @param prefetchMemory
+	 */
+	public synchronized void setPrefetchMemory(int prefetchMemory) {
+		PrefetchBudget budget = (PrefetchBudget) getPrefetchBudget();
+		int delta = prefetchMemory-this.prefetchMemory;
+		this.prefetchMemory = prefetchMemory;
+		if( delta > 0 ) {
+			budget.release(delta);
+		} else if( delta < 0 ) {
+			budget.reduce(-delta);
+		}
+	}
+
+
+	synchronized Semaphore getPrefetchBudget() {
+		if( prefetchBudget == null ) {
+			prefetchBudget = new PrefetchBudget(prefetchMemory);
+		}
+		return prefetchBudget;
+	}
+
+
+	public long getListingRefreshInterval() {
+		return listingRefreshInterval;
+	}
+
+
+	/**
+	 * Reload recently used directory listings in the background so hot directories
+	 * are always served from the cache.
+	 * 
+	 * @param millis (0 disables the refresher)
+	 */
+	public synchronized void setListingRefreshInterval(long millis) {
+		listingRefreshInterval = millis;
+		if( listingRefresher != null ) {
+			listingRefresher.cancel(false);
+			listingRefresher = null;
+		}
+		if( millis > 0 ) {
+			listingRefresher = getScheduler().scheduleWithFixedDelay(
+					()-> listingCache.refresh(), millis, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * 
+	 * @return a scheduler for factory background tasks. The threads are daemons.
+	 */
+	synchronized ScheduledExecutorService getScheduler() {
+		if( scheduler == null ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread ret = new Thread(r, FACTORY_ID+" scheduler");
+				ret.setDaemon(true);
+				return ret;
+			});
+		}
+		return scheduler;
+	}
+
+
+	/**
+	 * 
+	 * @return an executor for factory background work (read ahead, parallel transfers). The threads are daemons.
+	 */
+	synchronized ExecutorService getExecutor() {
+		if( executor == null ) {
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread ret = new Thread(r, FACTORY_ID+" worker");
+				ret.setDaemon(true);
+				return ret;
+			});
+		}
+		return executor;
+	}
+
+
+	/**
+	 * Get the row mapper for a statement, the column indexes are only resolved 
+	 * the first time a statement is executed.
+	 *   
+	 * @param sql
+	 * @param rs - a result set from the statement 
+	 * @return
+	 * @throws SQLException
+	 */
+	JdbcFileRowMapper getRowMapper(String sql, ResultSet rs) throws SQLException {
+		JdbcFileRowMapper ret = rowMappers.get(sql);
+		if( ret == null ) {
+			ret = new JdbcFileRowMapper(rs.getMetaData());
+			rowMappers.put(sql, ret);
+		}
+		return ret;
+	}
+
+
 	public String getUserId() {
 		return getConnectProperties().getProperty(JDBC_USERID);
 	}
@@ -330,6 +816,31 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 
 	@Override
 	protected void disConnectImpl() {
+		JdbcLazyAccessTimes times = getLazyAccessTimes();
+		times.stop();
+		if( pool != null ) {
+			try {
+				times.flush();
+			} catch (IOException e) {
+				logError("Can't flush access times", e);
+			}
+		}
+		pathCache.clear();
+		listingCache.clear();
+		chunkCache.clear();
+		rowMappers.clear();
+		synchronized (this) {
+			recursiveQuerySupported = null;
+			if( scheduler != null ) {
+				scheduler.shutdownNow();
+				scheduler = null;
+				listingRefresher = null;
+			}
+			if( executor != null ) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
 		if( pool != null ) {
 			try {
 				pool.destroyAll();
@@ -360,6 +871,51 @@ public class JdbcFileSourceFactory extends FileSourceFactory {
 		return ret;
 	}
 
+	/**
+	 * Recalculate the length and chunk_count columns of every file from file_data
+	 * where they do not match.
+	 *  
+	 * @return the number of files repaired
+	 * @throws IOException
+	 */
+	public int repairLengths() throws IOException {
+		String calcLength = "(select coalesce(sum(d.length),0) from file_source.file_data d where d.fileid = file_source.file.fileid)";
+		String calcCount = "(select count(d.chunk_number) from file_source.file_data d where d.fileid = file_source.file.fileid)";
+		String sql = "update file_source.file set length = "+calcLength+", chunk_count = "+calcCount
+				+" where file_type = ? and (length <> "+calcLength+" or chunk_count <> "+calcCount+")";
+
+		int ret = 0;
+		try(Connection con = getConnection()) {
+			try(PreparedStatement pstmt = con.prepareStatement(sql)) {
+				pstmt.setString(1, TYPE_FILE);
+				ret = pstmt.executeUpdate();
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		listingCache.clear();
+
+		return ret;
+	}
+
+	/**
+	 * Delete the chunks atomic writers staged and never moved to their file, because the 
+	 * process died or lost it's connection part way through a write. 
+	 * 
+	 * Staged chunks of writers open on this factory are kept. Writers in other processes 
+	 * can't be told apart from dead ones, so only call this when no other process is writing.
+	 * 
+	 * @return the number of chunks deleted
+	 * @throws IOException
+	 */
+	public int sweepStagedChunks() throws IOException {
+		try(Connection con = getConnection()) {
+			return stagingArea.sweep(con);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
 	@Override
 	public Component getEditPropertiesComponent() {
 		return null;
@@ -3,10 +3,19 @@ package us.bringardner.io.filesource.jdbcfile;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Objects;
 
 import us.bringardner.io.filesource.FileSource;
 import us.bringardner.io.filesource.ISeekableInputStream;
 
+/**
+ * Keeps the chunk holding the file pointer and the file's chunk offsets in memory. 
+ * Seeks are resolved with a binary search over the offsets and the database is only 
+ * read when the pointer leaves the current chunk.
+ * 
+ * The offsets are loaded once, so the stream sees the file as it was when it was 
+ * opened (or last grown by seek).
+ */
 public class JdbcFileSourceSeekableInputStream extends InputStream implements ISeekableInputStream {
 
 
@@ -14,71 +23,116 @@ public class JdbcFileSourceSeekableInputStream extends InputStream implements IS
 	private long pointer = 0;
 	private int bufferSize = 1024*5;
 	private boolean closed = false;
+	private long [] offsets;
+	private byte [] chunk;
+	//  file offset of chunk[0]
+	private long chunkStart;
 
-	JdbcFileSourceSeekableInputStream(JdbcFileSource file) {
+	JdbcFileSourceSeekableInputStream(JdbcFileSource file) throws IOException {
 		this.file = file;	
+		file.accessed();
+	}
+
+	private long [] getOffsets() throws IOException {
+		if( offsets == null ) {
+			offsets = file.getChunkOffsets();
+		}
+		return offsets;
 	}
 
 	@Override
 	public long length() throws IOException {		
-		return file.length(true);
+		long [] tmp = getOffsets();
+		return tmp[tmp.length-1];
 	}
 
 	@Override
 	public void seek(long whereTo) throws IOException {
 		long size = length();
-		while( whereTo > size) {
-			//  make it grow
+		if( whereTo > size ) {
+			while( whereTo > size) {
+				//  make it grow
 
-			int expand = (int) (whereTo - size);
-			if( expand >= bufferSize) {
-				expand = bufferSize;
-			}
+				int expand = (int) (whereTo - size);
+				if( expand >= bufferSize) {
+					expand = bufferSize;
+				}
 
-			try(OutputStream out = file.getOutputStream(true)) {
-				out.write(new byte[expand]);
-			}
+				try(OutputStream out = file.getOutputStream(true)) {
+					out.write(new byte[expand]);
+				}
 
-			size += expand;
+				size += expand;
+			}
+			offsets = null;
+			chunk = null;
 		}
 
 		pointer = whereTo;		
 
 	}
 
-	private byte [] dubmBuffer = new byte[1];
-
 	/**
-	 * Warning... this will be very slow.
-	 * But, I don't think it will be used much and I'm too lazy to manage a runtime buffer :-(
+	 * Make chunk the one holding the file pointer.
+	 * @return false if the pointer is at or past the end of the file
 	 */
+	private boolean loadChunk() throws IOException {
+		if( chunk != null && pointer >= chunkStart && pointer < chunkStart+chunk.length) {
+			return true;
+		}
+
+		long [] tmp = getOffsets();
+		int number = JdbcFileSource.findChunk(tmp, pointer);
+		if( number >= tmp.length) {
+			return false;
+		}
+
+		chunk = file.getChunk(number);
+		chunkStart = tmp[number-1];
+		return chunk != null && chunk.length > 0;
+	}
+
 	@Override
 	public int read() throws IOException {
-		if( !closed ) {
-			if( read(dubmBuffer) == dubmBuffer.length) {
-				return dubmBuffer[0];
-			}
+		if( !closed && loadChunk()) {
+			return chunk[(int)(pointer++ - chunkStart)] & 0xff;
 		}
 		return -1;
 	}
 
 	@Override
-	public int read(byte[] data, int start, int end) throws IOException {
-		int ret = -1;
-		if( !closed) {
-			long skip = pointer+start;
-			try(InputStream in = file.getInputStream(skip)) {
-				if( (ret=in.read(data, start, end))>=0) {
-					pointer+=ret;
-				}
-			}
+	public int read(byte[] data, int start, int len) throws IOException {
+		Objects.checkFromIndexSize(start, len, data.length);
+		if( closed ) {
+			return -1;
+		}
+		if( len == 0 ) {
+			return 0;
 		}
+
+		int ret = 0;
+		while( ret < len && loadChunk()) {
+			int pos = (int) (pointer-chunkStart);
+			int cnt = Math.min(len-ret, chunk.length-pos);
+			System.arraycopy(chunk, pos, data, start+ret, cnt);
+			pointer += cnt;
+			ret += cnt;
+		}
+
+		return ret == 0 ? -1 : ret;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long ret = Math.max(0, Math.min(n, length()-pointer));
+		pointer += ret;
 		return ret;
 	}
 
 	@Override
 	public void close() throws IOException {
 		closed = true;		
+		chunk = null;
 	}
 
 	@Override
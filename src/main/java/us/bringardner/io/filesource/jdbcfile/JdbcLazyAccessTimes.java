@@ -0,0 +1,119 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects access times for the LAZYTIME policy and writes them in one batch per
+ * flush interval, so a hot file costs at most one update per interval.
+ */
+public class JdbcLazyAccessTimes {
+
+	//  rows per executeBatch
+	public static final int BATCH_SIZE = 500;
+
+	private static final String UPDATE = "update file_source.file set last_access_date = ?"
+			+ " where fileid = ? and (last_access_date is null or last_access_date < ?)";
+
+	private JdbcFileSourceFactory factory;
+	private Map<Long, Long> pending = new HashMap<>();
+	private ScheduledFuture<?> flusher;
+
+	JdbcLazyAccessTimes(JdbcFileSourceFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Remember an access, the latest time for a file wins.
+	 * @param fileid
+	 * @param time
+	 */
+	public synchronized void record(long fileid, long time) {
+		pending.merge(fileid, time, Math::max);
+		if( flusher == null ) {
+			long millis = factory.getLazyTimeFlushInterval();
+			flusher = factory.getScheduler().scheduleWithFixedDelay(() -> {
+				try {
+					flush();
+				} catch (IOException e) {
+					factory.logError("Can't flush access times", e);
+				}
+			}, millis, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 
+	 * @param fileid
+	 * @return the access time waiting to be written or null
+	 */
+	public synchronized Long get(long fileid) {
+		return pending.get(fileid);
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Write all pending access times in a single transaction.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		Map<Long, Long> batch;
+		synchronized (this) {
+			if( pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			pending = new HashMap<>();
+		}
+
+		try(Connection con = factory.getConnection()) {
+			con.setAutoCommit(false);
+			try(PreparedStatement pstmt = con.prepareStatement(UPDATE)) {
+				int cnt = 0;
+				for(Map.Entry<Long, Long> e : batch.entrySet()) {
+					Timestamp time = new Timestamp(e.getValue());
+					pstmt.setTimestamp(1, time);
+					pstmt.setLong(2, e.getKey());
+					pstmt.setTimestamp(3, time);
+					pstmt.addBatch();
+					if( ++cnt % BATCH_SIZE == 0 ) {
+						pstmt.executeBatch();
+					}
+				}
+				if( cnt % BATCH_SIZE != 0 ) {
+					pstmt.executeBatch();
+				}
+			}
+			con.commit();
+		} catch (SQLException e) {
+			//  put them back for the next try, unless a newer time was recorded
+			synchronized (this) {
+				for(Map.Entry<Long, Long> e2 : batch.entrySet()) {
+					pending.merge(e2.getKey(), e2.getValue(), Math::max);
+				}
+			}
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Stop the background flush, pending times are kept until the next flush().
+	 */
+	synchronized void stop() {
+		if( flusher != null ) {
+			flusher.cancel(false);
+			flusher = null;
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, factory wide, LRU cache of directory listings keyed by the directory's fileid.
+ *
+ * Listings expire after the KIDS time to live configured on the factory and are 
+ * invalidated when a child is created, deleted, renamed or updated through the factory.
+ * When a refresh interval is set on the factory, listings that have been used recently 
+ * are reloaded in the background so they do not expire while they are hot.
+ */
+public class JdbcListingCache {
+
+	private class Entry {
+		List<JdbcFileRow> rows;
+		long lastUpdate;
+		long lastAccess;
+
+		Entry(List<JdbcFileRow> rows) {
+			this.rows = rows;
+			lastUpdate = lastAccess = System.currentTimeMillis();
+		}
+
+		boolean hasExprired() {
+			return System.currentTimeMillis()-lastUpdate > factory.getFieldTimeToLive(JdbcFileSourceFactory.KIDS);
+		}
+	}
+
+	private JdbcFileSourceFactory factory;
+	private int maxSize;
+	private LinkedHashMap<Long, Entry> map;
+	//  used to detect an invalidation while a listing is being loaded
+	private long generation = 0;
+
+	JdbcListingCache(JdbcFileSourceFactory factory, int maxSize) {
+		this.factory = factory;
+		this.maxSize = maxSize;
+		map = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, JdbcListingCache.Entry> eldest) {
+				return size() > JdbcListingCache.this.maxSize;
+			}
+		};
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		Iterator<Long> it = map.keySet().iterator();
+		while( map.size() > maxSize && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Get the rows for all children of a directory, from the cache if possible.
+	 *  
+	 * @param dirId
+	 * @return an unmodifiable list of rows, the rows must not be changed
+	 * @throws IOException
+	 */
+	List<JdbcFileRow> getKids(long dirId) throws IOException {
+		long gen;
+		synchronized (this) {
+			Entry e = map.get(dirId);
+			if( e != null ) {
+				if( !e.hasExprired()) {
+					e.lastAccess = System.currentTimeMillis();
+					return e.rows;
+				}
+				map.remove(dirId);
+			}
+			gen = generation;
+		}
+
+		List<JdbcFileRow> ret = load(dirId);
+		put(dirId, ret, gen);
+
+		return ret;
+	}
+
+	private synchronized void put(long dirId, List<JdbcFileRow> rows, long gen) {
+		//  don't cache a listing that was invalidated while it was loading
+		if( maxSize > 0 && gen == generation) {
+			map.put(dirId, new Entry(rows));
+		}
+	}
+
+	private List<JdbcFileRow> load(long dirId) throws IOException {
+		List<JdbcFileRow> ret = new ArrayList<>();
+		try(Connection con = factory.getConnection()) {
+			try(PreparedStatement pstmt = con.prepareStatement(JdbcFileSource.SELECT_KIDS)) {
+				pstmt.setLong(1, dirId);
+				try(ResultSet rs = pstmt.executeQuery()) {
+					JdbcFileRowMapper mapper = factory.getRowMapper(JdbcFileSource.SELECT_KIDS, rs);
+					while(rs.next()) {
+						ret.add(mapper.map(rs));
+					}
+				}
+			}
+		} catch(SQLException e) {
+			throw new IOException(e);
+		}
+
+		return Collections.unmodifiableList(ret);
+	}
+
+	public synchronized void invalidate(long dirId) {
+		generation++;
+		map.remove(dirId);
+	}
+
+	public synchronized void clear() {
+		generation++;
+		map.clear();
+	}
+
+	/**
+	 * Reload every listing that has been used within the KIDS time to live.
+	 * Called by the factory's background refresher.
+	 */
+	void refresh() {
+		List<Long> ids = new ArrayList<>();
+		synchronized (this) {
+			long ttl = factory.getFieldTimeToLive(JdbcFileSourceFactory.KIDS);
+			long now = System.currentTimeMillis();
+			for(Map.Entry<Long, Entry> e : map.entrySet()) {
+				if( now-e.getValue().lastAccess <= ttl) {
+					ids.add(e.getKey());
+				}
+			}
+		}
+
+		for(Long id : ids) {
+			long gen;
+			synchronized (this) {
+				gen = generation;
+			}
+			try {
+				List<JdbcFileRow> rows = load(id);
+				synchronized (this) {
+					Entry e = map.get(id);
+					if( e != null && gen == generation) {
+						e.rows = rows;
+						e.lastUpdate = System.currentTimeMillis();
+					}
+				}
+			} catch (IOException e) {
+				factory.logError("Can't refresh listing for "+id, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Replaces the content of a file from a source of known length.
+ *
+ * Chunk numbers follow from the length, so the chunks are split into contiguous ranges
+ * that are inserted concurrently, each over it's own pooled connection. The file row is
+ * updated once at the end. With atomic writes the chunks are staged under the writer's own id,
+ * like JdbcFileOutputStream does, and swapped in with the row update so readers never see a partly written file.
+ */
+class JdbcParallelWriter {
+
+	private static final String INSERT = "insert into file_source.file_data (chunk_number,fileid,length,data) values(?,?,?,?)";
+	private static final String DELETE = "delete from file_source.file_data where fileid=?";
+
+	//  below this many chunks per connection a parallel write isn't worth the extra connections
+	public static final int MIN_CHUNKS_PER_WRITER = 4;
+
+	/**
+	 * Random access to the bytes being written, safe to call from several threads.
+	 */
+	private interface Source {
+		void read(long offset, byte [] dst, int len) throws IOException;
+	}
+
+	private JdbcFileSource file;
+	private JdbcFileSourceFactory factory;
+	//  tells the other writers to stop after one fails
+	private volatile boolean failed;
+
+	JdbcParallelWriter(JdbcFileSource file) {
+		this.file = file;
+		factory = (JdbcFileSourceFactory) file.getFileSourceFactory();
+	}
+
+	/**
+	 * Write the remaining bytes of src, src's position is moved to it's limit.
+	 *
+	 * @param src
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	long write(ByteBuffer src) throws IOException {
+		ByteBuffer data = src.duplicate();
+		int base = data.position();
+		long ret = write(data.remaining(), (offset, dst, len) -> {
+			ByteBuffer tmp = data.duplicate();
+			tmp.position(base+(int)offset);
+			tmp.get(dst, 0, len);
+		});
+		src.position(src.limit());
+		return ret;
+	}
+
+	/**
+	 * Write src from it's position to it's size, the position is moved to the size.
+	 *
+	 * @param src
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	long write(SeekableByteChannel src) throws IOException {
+		long base = src.position();
+		long size = Math.max(0, src.size()-base);
+		Source source;
+		if( src instanceof FileChannel ) {
+			//  positional reads don't touch the channel's position
+			FileChannel channel = (FileChannel) src;
+			source = (offset, dst, len) -> {
+				ByteBuffer buf = ByteBuffer.wrap(dst, 0, len);
+				while( buf.hasRemaining()) {
+					if( channel.read(buf, base+offset+buf.position()) < 0 ) {
+						throw new EOFException();
+					}
+				}
+			};
+		} else {
+			source = (offset, dst, len) -> {
+				ByteBuffer buf = ByteBuffer.wrap(dst, 0, len);
+				synchronized (src) {
+					src.position(base+offset);
+					while( buf.hasRemaining()) {
+						if( src.read(buf) < 0 ) {
+							throw new EOFException();
+						}
+					}
+				}
+			};
+		}
+		long ret = write(size, source);
+		src.position(base+ret);
+		return ret;
+	}
+
+	private long write(long size, Source source) throws IOException {
+		int chunkSize = factory.getChunk_size();
+		long chunks = (size+chunkSize-1)/chunkSize;
+		boolean atomic = factory.isAtomicWrites();
+		long fileid = file.getFileId();
+		long target = atomic ? factory.getStagingArea().open(fileid) : fileid;
+
+		if( !atomic ) {
+			file.truncate();
+		}
+
+		int writers = (int) Math.max(1, Math.min(factory.getParallelWrites(), chunks/MIN_CHUNKS_PER_WRITER));
+		long per = (chunks+writers-1)/writers;
+		List<Future<?>> tasks = new ArrayList<>();
+		boolean ok = false;
+		try {
+			for(long start=1; start <= chunks; start+=per ) {
+				long from = start;
+				long to = Math.min(chunks, start+per-1);
+				if( writers == 1 ) {
+					insert(from, to, target, size, source);
+				} else {
+					tasks.add(factory.getExecutor().submit(() -> {
+						insert(from, to, target, size, source);
+						return null;
+					}));
+				}
+			}
+			waitFor(tasks);
+
+			try(Connection con = factory.getConnection()) {
+				con.setAutoCommit(false);
+				try {
+					//  wait for any other writer of the file to commit
+					if( file.lockLength(con) == null ) {
+						throw new FileNotFoundException(file.getAbsolutePath()+" was deleted");
+					}
+					if( atomic ) {
+						try(PreparedStatement pstmt = con.prepareStatement(DELETE)) {
+							pstmt.setLong(1, fileid);
+							pstmt.executeUpdate();
+						}
+						try(PreparedStatement pstmt = con.prepareStatement(
+								"update file_source.file_data set fileid=? where fileid=?")) {
+							pstmt.setLong(1, fileid);
+							pstmt.setLong(2, target);
+							long staged = pstmt.executeUpdate();
+							if( staged != chunks ) {
+								throw new IOException("Expected "+chunks+" staged chunks for "+file.getAbsolutePath()+" but found "+staged);
+							}
+						}
+					}
+					file.updateLength(con, size, (int)chunks);
+					con.commit();
+				} catch (SQLException | IOException e) {
+					con.rollback();
+					throw e;
+				} finally {
+					con.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+			ok = true;
+		} finally {
+			if( !ok ) {
+				//  leave the old content, or an empty file when not atomic
+				file.refresh();
+				delete(target);
+			}
+			if( atomic ) {
+				factory.getStagingArea().close(target);
+			}
+			file.chunksChanged();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Insert chunks first through last, with a commit per batch.
+	 */
+	private void insert(long first, long last, long target, long size, Source source) throws IOException {
+		int chunkSize = factory.getChunk_size();
+		int batchSize = Math.max(1, factory.getWriteBatchSize());
+		try(Connection con = factory.getConnection()) {
+			con.setAutoCommit(false);
+			try(PreparedStatement pstmt = con.prepareStatement(INSERT)) {
+				int pending = 0;
+				//  the batch keeps a reference to each array until it is executed
+				byte [][] buffers = new byte[batchSize][];
+				for(long chunk=first; chunk <= last && !failed; chunk++ ) {
+					long offset = (chunk-1)*chunkSize;
+					int len = (int) Math.min(chunkSize, size-offset);
+					byte [] data = buffers[pending];
+					if( data == null || data.length != len ) {
+						data = buffers[pending] = new byte[len];
+					}
+					source.read(offset, data, len);
+					pstmt.setLong(1, chunk);
+					pstmt.setLong(2, target);
+					pstmt.setInt(3, len);
+					pstmt.setBytes(4, data);
+					pstmt.addBatch();
+					if( ++pending >= batchSize || chunk == last ) {
+						pstmt.executeBatch();
+						con.commit();
+						pending = 0;
+					}
+				}
+			} finally {
+				con.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void delete(long fileid) throws IOException {
+		try(Connection con = factory.getConnection()) {
+			try(PreparedStatement pstmt = con.prepareStatement(DELETE)) {
+				pstmt.setLong(1, fileid);
+				pstmt.executeUpdate();
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Wait for every task, even after one fails, so nothing is still inserting when the caller cleans up.
+	 */
+	private void waitFor(List<Future<?>> tasks) throws IOException {
+		IOException error = null;
+		boolean interrupted = false;
+		for(Future<?> task : tasks) {
+			while( true ) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					failed = true;
+					if( error == null ) {
+						error = new IOException(e);
+					}
+				} catch (ExecutionException e) {
+					failed = true;
+					if( error == null ) {
+						Throwable cause = e.getCause();
+						error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+					}
+					break;
+				}
+			}
+		}
+		if( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		if( error != null ) {
+			throw error;
+		}
+	}
+
+}
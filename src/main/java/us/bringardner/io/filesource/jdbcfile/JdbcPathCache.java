@@ -0,0 +1,220 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, factory wide, approximately LRU cache of absolute path to fileid and, once it
+ * has been loaded, a snapshot of the file row.
+ *
+ * Entries expire after the PATHS time to live configured on the factory and
+ * are invalidated by the factory's own create, delete and rename operations.
+ * Changes made outside of this factory are only seen once an entry expires.
+ * A cached row is also dropped when the factory changes it and is otherwise
+ * subject to the same field time to live as the row held by a JdbcFileSource.
+ *
+ * Lookups don't lock. Paths are kept sorted so a tree is invalidated by removing a
+ * range of keys, and when the cache grows past it's size the least recently used
+ * tenth is evicted in one pass.
+ */
+public class JdbcPathCache {
+
+	private class Entry {
+		final long fileid;
+		final long lastUpdate;
+		volatile JdbcFileRow row;
+		volatile long used;
+
+		Entry(long fileid) {
+			this.fileid = fileid;
+			lastUpdate = System.currentTimeMillis();
+			used = System.nanoTime();
+		}
+
+		boolean hasExprired() {
+			return System.currentTimeMillis()-lastUpdate > factory.getFieldTimeToLive(JdbcFileSourceFactory.PATHS);
+		}
+	}
+
+	private JdbcFileSourceFactory factory;
+	private volatile int maxSize;
+	private ConcurrentSkipListMap<String, Entry> map = new ConcurrentSkipListMap<>();
+	//  the map's size() walks every entry
+	private AtomicInteger count = new AtomicInteger();
+	private AtomicBoolean evicting = new AtomicBoolean();
+
+	JdbcPathCache(JdbcFileSourceFactory factory, int maxSize) {
+		this.factory = factory;
+		this.maxSize = maxSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public int size() {
+		return count.get();
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return the fileid or null if the path is not cached (or has expired)
+	 */
+	public Long get(String path) {
+		Entry e = lookup(path);
+		return e == null ? null : e.fileid;
+	}
+
+	public void put(String path, long fileid) {
+		if( maxSize > 0 ) {
+			add(path, new Entry(fileid));
+		}
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @param fileid
+	 * @return a copy of the cached row or null if the row is not cached (or has expired)
+	 */
+	JdbcFileRow getRow(String path, long fileid) {
+		Entry e = lookup(path);
+		if( e != null && e.fileid == fileid ) {
+			JdbcFileRow row = e.row;
+			if( row != null ) {
+				return row.copy();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Cache a copy of a freshly loaded row, the path's fileid is cached with it.
+	 * @param path
+	 * @param row
+	 */
+	void putRow(String path, JdbcFileRow row) {
+		if( maxSize > 0 ) {
+			Entry e = map.get(path);
+			if( e == null || e.fileid != row.fileid ) {
+				e = new Entry(row.fileid);
+				e.row = row.copy();
+				add(path, e);
+			} else {
+				e.row = row.copy();
+			}
+		}
+	}
+
+	/**
+	 * Drop the cached row but keep the fileid.
+	 * @param path
+	 */
+	public void invalidateRow(String path) {
+		Entry e = map.get(path);
+		if( e != null ) {
+			e.row = null;
+		}
+	}
+
+	public void invalidate(String path) {
+		if( map.remove(path) != null ) {
+			count.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove the path and everything below it.
+	 * @param path
+	 */
+	public void invalidateTree(String path) {
+		invalidate(path);
+		String prefix = path.endsWith(JdbcFileSourceFactory.seperator) ? path : path+JdbcFileSourceFactory.seperator;
+		//  every key that starts with prefix sorts before prefix with it's last character incremented
+		String end = prefix.substring(0, prefix.length()-1)+(char)(prefix.charAt(prefix.length()-1)+1);
+		removeAll(map.subMap(prefix, end));
+	}
+
+	public void clear() {
+		removeAll(map);
+	}
+
+	private Entry lookup(String path) {
+		Entry e = map.get(path);
+		if( e != null ) {
+			if( e.hasExprired()) {
+				if( map.remove(path, e)) {
+					count.decrementAndGet();
+				}
+				e = null;
+			} else {
+				e.used = System.nanoTime();
+			}
+		}
+		return e;
+	}
+
+	private void add(String path, Entry e) {
+		if( map.put(path, e) == null && count.incrementAndGet() > maxSize ) {
+			evict();
+		}
+	}
+
+	private void removeAll(ConcurrentNavigableMap<String, Entry> range) {
+		for(Map.Entry<String, Entry> e : range.entrySet()) {
+			if( map.remove(e.getKey(), e.getValue())) {
+				count.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries until the cache is a tenth under maxSize.
+	 * Only one thread evicts at a time, the others carry on over the limit until it's done.
+	 */
+	private void evict() {
+		while( count.get() > maxSize && evicting.compareAndSet(false, true)) {
+			try {
+				int max = maxSize;
+				int excess = count.get()-(max-max/10);
+				if( excess <= 0 ) {
+					return;
+				}
+
+				//  entries used after the snapshot survive, that's close enough to LRU
+				long [] used = new long[count.get()];
+				int sz = 0;
+				for(Entry e : map.values()) {
+					if( sz == used.length ) {
+						used = Arrays.copyOf(used, sz*2+1);
+					}
+					used[sz++] = e.used;
+				}
+				if( sz == 0 ) {
+					return;
+				}
+				Arrays.sort(used, 0, sz);
+				long oldest = used[Math.min(excess, sz)-1];
+
+				for(Map.Entry<String, Entry> e : map.entrySet()) {
+					if( e.getValue().used <= oldest && map.remove(e.getKey(), e.getValue())) {
+						count.decrementAndGet();
+					}
+				}
+			} finally {
+				evicting.set(false);
+			}
+		}
+	}
+
+}
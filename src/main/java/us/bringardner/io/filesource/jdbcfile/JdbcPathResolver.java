@@ -0,0 +1,149 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves the fileid of every element in a JdbcFileSource parent chain with a single statement.
+ *
+ * Each unresolved path segment becomes a self join on (parentid,name) anchored at the
+ * deepest ancestor that already knows its fileid (or at parentid 0 for the top of the chain).
+ * This uses the unique (parentid,name) index on every dialect we support and returns
+ * the fileid of every level in one row, so a path n levels deep costs one round trip instead of n.
+ * 
+ * Resolved paths are shared through the factory's JdbcPathCache so the walk stops at the 
+ * deepest cached ancestor.
+ */
+public class JdbcPathResolver {
+
+	//  Very deep paths are resolved in slices so the join count stays reasonable
+	public static final int MAX_JOINS = 32;
+
+	private JdbcFileSourceFactory factory;
+	private String [] sqlCache = new String[MAX_JOINS+1];
+
+	JdbcPathResolver(JdbcFileSourceFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Resolve the file and all of it's unresolved ancestors.
+	 *
+	 * @param file
+	 * @return true if the file exists
+	 * @throws IOException
+	 */
+	public boolean resolve(JdbcFileSource file) throws IOException {
+		if( file.isResolved()) {
+			return true;
+		}
+
+		//  Collect the unresolved part of the chain, top down, stopping at the first cached path
+		JdbcPathCache cache = factory.getPathCache();
+		List<JdbcFileSource> chain = new ArrayList<>();
+		List<String> paths = new ArrayList<>();
+		String path = file.getAbsolutePath();
+		JdbcFileSource anchor = file;
+		while( anchor != null && !anchor.isResolved()) {
+			Long id = cache.get(path);
+			if( id != null ) {
+				anchor.setResolvedFileId(id);
+				break;
+			}
+			chain.add(0, anchor);
+			paths.add(0, path);
+			anchor = anchor.getParentSource();
+			path = getParentPath(path);
+		}
+
+		if( chain.isEmpty()) {
+			return true;
+		}
+
+		long pid = anchor == null ? 0 : anchor.getFileId();
+
+		try(Connection con = factory.getConnection()) {
+			for(int start=0,sz=chain.size(); start < sz; start+=MAX_JOINS ) {
+				List<JdbcFileSource> slice = chain.subList(start, Math.min(sz, start+MAX_JOINS));
+				if( !resolve(con, pid, slice)) {
+					break;
+				}
+				pid = slice.get(slice.size()-1).getFileId();
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+
+		for (int idx = 0,sz=chain.size(); idx < sz; idx++) {
+			JdbcFileSource tmp = chain.get(idx);
+			if( !tmp.isResolved()) {
+				break;
+			}
+			cache.put(paths.get(idx), tmp.getFileId());
+		}
+
+		return file.isResolved();
+	}
+
+	private static String getParentPath(String path) {
+		int idx = path.lastIndexOf(JdbcFileSourceFactory.seperatorChar);
+		return idx <= 0 ? JdbcFileSourceFactory.seperator : path.substring(0,idx);
+	}
+
+	/**
+	 *
+	 * @return true if the last element in the slice was found
+	 */
+	private boolean resolve(Connection con, long pid, List<JdbcFileSource> slice) throws SQLException {
+		boolean ret = false;
+		int cnt = slice.size();
+
+		try(PreparedStatement pstmt = con.prepareStatement(getSql(cnt))) {
+			//  join parameters come first in the statement text
+			int pos = 1;
+			for (int idx = 1; idx < cnt; idx++) {
+				pstmt.setString(pos++, slice.get(idx).getName());
+			}
+			pstmt.setLong(pos++, pid);
+			pstmt.setString(pos++, slice.get(0).getName());
+
+			try(ResultSet rs = pstmt.executeQuery()) {
+				if( rs.next()) {
+					for (int idx = 0; idx < cnt; idx++) {
+						long id = rs.getLong(idx+1);
+						if( rs.wasNull()) {
+							break;
+						}
+						slice.get(idx).setResolvedFileId(id);
+						ret = idx == cnt-1;
+					}
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	private synchronized String getSql(int cnt) {
+		String ret = sqlCache[cnt];
+		if( ret == null ) {
+			StringBuilder select = new StringBuilder("select t1.fileid");
+			StringBuilder from = new StringBuilder(" from file_source.file t1");
+			for (int idx = 2; idx <= cnt; idx++) {
+				select.append(", t"+idx+".fileid");
+				from.append(" left join file_source.file t"+idx
+						+" on t"+idx+".parentid = t"+(idx-1)+".fileid and t"+idx+".name = ?");
+			}
+			ret = select.toString()+from.toString()+" where t1.parentid = ? and t1.name = ?";
+			sqlCache[cnt] = ret;
+		}
+
+		return ret;
+	}
+
+}
@@ -3,7 +3,6 @@ package us.bringardner.io.filesource.jdbcfile;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import us.bringardner.io.filesource.IRandomAccessIoController;
@@ -216,6 +215,7 @@ Calf
 						if( pstmt.executeUpdate() != 1) {
 							throw new IOException("Can't update chunk="+currentChunk);
 						}						
+						factory.getChunkCache().invalidate(file.getFileId(), currentChunk.chunk_number);
 					} catch (SQLException e) {
 						throw new IOException(e);
 					}
@@ -224,7 +224,7 @@ Calf
 			currentChunk.isDirty = false;
 			currentChunk.isNew = false;
 			maxWriteOffset = -1;
-			file.fieldCache.remove(JdbcFileSource.LENGTH);
+			file.refresh();
 		}
 	}
 
@@ -241,7 +241,7 @@ Calf
 			shrinkTo(newLength);
 		}
 		currentChunk = null;
-		file.fieldCache.remove(JdbcFileSource.LENGTH);
+		file.refresh();
 	}
 
 	private void expandTo(long newLength) throws IOException {
@@ -291,11 +291,14 @@ Calf
 			pstmt.setLong(1, chunkNumber);
 			pstmt.setLong(2, file.getFileId());
 			pstmt.executeUpdate();
+			factory.getChunkCache().invalidate(file.getFileId());
 		} catch (SQLException e) {
 			throw new IOException(e);
 		}
 
-		len = file.length(true);
+		//  bring the file row's length and chunk_count back in line with file_data
+		file.checkLength(true);
+		len = file.length();
 		int delta = (int)(newLength- currentChunk.start);
 
 		if( delta > 0 ) {
@@ -355,64 +358,20 @@ Calf
 			currentChunk = c;
 			return;
 		}
-	
-/*
-select max(chunk_number) as chunk_number ,max(start_pos) as start_pos
-from (
-	select chunk_number, sum(length)  as start_pos
-		from file_source.file_data where fileid = 2
-		group by chunck_number
-		order  by chunk_number
-	) tt
-where start_pos <= 100
- */
-		try(PreparedStatement pstmt1 = getConnection().prepareStatement(
-				"select chunk_number, length \n"
-				+ "from file_source.file_data \n"
-				+ "where fileid = ?\n"
-				+ "order by chunk_number"
-				)){
-			
-			long id = file.getFileId();
-			pstmt1.setLong(1, id);
-			
 
-			long max_chunk = 0;
-			long start_pos = 0;
-			long end_pos = -1;
-			long size=0;
-			
-			try(ResultSet rs1 = pstmt1.executeQuery()) {
-				while(end_pos < pos && rs1.next()) {					
-					max_chunk = rs1.getLong("chunk_number");
-					size      = rs1.getLong("length");
-					start_pos = end_pos < 0 ?0:end_pos;
-					end_pos   = start_pos+size;
-				}
-				if( end_pos == pos) {
-					max_chunk++;
-					start_pos = end_pos;
-				}
-				long chunk_number = max_chunk;
-				byte [] data1 = file.getChunk(chunk_number);
-				if( data1 == null ) {
-					data1 = file.getChunk(--chunk_number);
-					if(data1 == null ) {
-						System.out.println("Can't do it");
-						}
-				}
-
-				Chunk c = new Chunk(start_pos, chunk_number, data1);
-				c.size = data1.length;
-				c.end = start_pos+data1.length;
-				currentChunk = c;
-				 
-			}
-
-		} catch (SQLException e) {
-			throw new IOException(e);
+		//  binary search the file's cached chunk offsets instead of scanning every chunk row
+		long [] offsets = file.getChunkOffsets();
+		int chunk_number = JdbcFileSource.findChunk(offsets, pos);
+		byte [] data1 = chunk_number < offsets.length ? file.getChunk(chunk_number) : null;
+		if( data1 == null ) {
+			throw new IOException("Can't load chunk "+chunk_number+" for position "+pos);
 		}
 
+		long start_pos = offsets[chunk_number-1];
+		Chunk c = new Chunk(start_pos, chunk_number, data1);
+		c.size = data1.length;
+		c.end = start_pos+data1.length;
+		currentChunk = c;
 	}
 
 
@@ -0,0 +1,270 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a byte range of a file by fetching only the chunks that cover it.
+ *
+ * Large ranges are split into contiguous runs of chunks that are read concurrently,
+ * each over it's own pooled connection, straight into their part of the destination buffer.
+ */
+class JdbcRangeReader {
+
+	static final String SELECT_RANGE = "select chunk_number,length,data from file_source.file_data"
+			+ " where fileid=? and chunk_number between ? and ? order by chunk_number";
+
+	//  the range and the offset of it's first chunk in one round trip
+	static final String SELECT_AT = "select chunk_number,length,data,"
+			+ "(select coalesce(sum(length),0) from file_source.file_data where fileid=? and chunk_number<?)"
+			+ " from file_source.file_data where fileid=? and chunk_number between ? and ? order by chunk_number";
+
+	//  readByPosition() guessed the wrong chunks
+	private static final long MISSED = -2;
+
+	//  below this many chunks per connection a parallel read isn't worth the round trips
+	public static final int MIN_CHUNKS_PER_READER = 4;
+
+	private JdbcFileSource file;
+	private JdbcFileSourceFactory factory;
+	private long [] offsets;
+
+	JdbcRangeReader(JdbcFileSource file) {
+		this.file = file;
+		factory = (JdbcFileSourceFactory) file.getFileSourceFactory();
+	}
+
+	/**
+	 * Read up to length bytes starting at position into dst.
+	 *
+	 * @param position
+	 * @param length
+	 * @param dst receives min(length, dst.remaining(), bytes left in the file) bytes
+	 * @return the number of bytes read or -1 if position is at or past the end of the file
+	 * @throws IOException
+	 */
+	long read(long position, long length, ByteBuffer dst) throws IOException {
+		return read(position, length, dst, factory.getParallelReads());
+	}
+
+	/**
+	 *
+	 * @param position
+	 * @param length
+	 * @param dst
+	 * @param maxReaders the most connections to use, 1 reads the range with a single query
+	 * @return the number of bytes read or -1 if position is at or past the end of the file
+	 * @throws IOException
+	 */
+	long read(long position, long length, ByteBuffer dst, int maxReaders) throws IOException {
+		if( offsets == null ) {
+			offsets = file.cachedChunkOffsets();
+		}
+		if( offsets == null ) {
+			long ret = readByPosition(position, length, dst, maxReaders);
+			if( ret != MISSED ) {
+				return ret;
+			}
+			offsets = file.getChunkOffsets();
+		}
+		//  effectively final for the readers
+		long [] index = offsets;
+		long size = index[index.length-1];
+		if( position >= size ) {
+			return -1;
+		}
+
+		long ret = Math.min(Math.min(length, dst.remaining()), size-position);
+		if( ret <= 0 ) {
+			return 0;
+		}
+
+		int first = JdbcFileSource.findChunk(index, position);
+		int last = JdbcFileSource.findChunk(index, position+ret-1);
+		int chunks = last-first+1;
+		int readers = Math.max(1, Math.min(maxReaders, chunks/MIN_CHUNKS_PER_READER));
+		int base = dst.position();
+
+		if( readers == 1 ) {
+			read(first, last, index, position, ret, dst, base);
+		} else {
+			List<Future<?>> tasks = new ArrayList<>();
+			int per = (chunks+readers-1)/readers;
+			for(int start=first; start <= last; start+=per ) {
+				int from = start;
+				int to = Math.min(last, start+per-1);
+				long len = ret;
+				tasks.add(factory.getExecutor().submit(() -> {
+					read(from, to, index, position, len, dst, base);
+					return null;
+				}));
+			}
+			waitFor(tasks);
+		}
+
+		dst.position(base+(int)ret);
+		return ret;
+	}
+
+	/**
+	 * Without the offsets, number the chunks that cover the range as if every chunk before them
+	 * is chunk_size long and read them with one query. The query also sums the lengths of the 
+	 * earlier chunks in the database, so the guess is checked without fetching a row per chunk.
+	 *
+	 * @return the number of bytes read, -1 if position is at or past the end of the file or 
+	 * MISSED if the range is too large for one reader or the guessed chunks don't cover it
+	 */
+	private long readByPosition(long position, long length, ByteBuffer dst, int maxReaders) throws IOException {
+		long size = file.length();
+		if( position >= size ) {
+			return -1;
+		}
+
+		long ret = Math.min(Math.min(length, dst.remaining()), size-position);
+		if( ret <= 0 ) {
+			return 0;
+		}
+
+		int chunkSize = factory.getChunk_size();
+		long first = position/chunkSize+1;
+		long last = (position+ret-1)/chunkSize+1;
+		if( maxReaders > 1 && last-first+1 >= 2*MIN_CHUNKS_PER_READER ) {
+			return MISSED;
+		}
+
+		long end = position+ret;
+		int base = dst.position();
+		long covered = -1;
+		try(Connection con = factory.getConnection()) {
+			con.setAutoCommit(false);
+			try(PreparedStatement pstmt = con.prepareStatement(SELECT_AT)) {
+				pstmt.setFetchSize(factory.getReadFetchSize());
+				pstmt.setLong(1, file.getFileId());
+				pstmt.setLong(2, first);
+				pstmt.setLong(3, file.getFileId());
+				pstmt.setLong(4, first);
+				pstmt.setLong(5, last);
+				try(ResultSet rs = pstmt.executeQuery()) {
+					ByteBuffer target = dst.duplicate();
+					long expect = first;
+					while( rs.next()) {
+						int chunk = rs.getInt(1);
+						int len = rs.getInt(2);
+						if( covered < 0 ) {
+							covered = rs.getLong(4);
+							if( covered > position ) {
+								return MISSED;
+							}
+						}
+						if( chunk != expect++ ) {
+							return MISSED;
+						}
+						byte [] data;
+						try(InputStream in = rs.getBinaryStream(3)) {
+							data = in == null ? new byte[0] : in.readNBytes(len);
+						}
+
+						place(ByteBuffer.wrap(data), covered, position, end, target, base);
+						covered += data.length;
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+
+		if( covered < end ) {
+			return MISSED;
+		}
+		dst.position(base+(int)ret);
+		return ret;
+	}
+
+	private void waitFor(List<Future<?>> tasks) throws IOException {
+		try {
+			for(Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		} finally {
+			for(Future<?> task : tasks) {
+				task.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Read chunks first through last and copy the part that falls in [position, position+length)
+	 * to dst at base + (offset - position). Only absolute puts are used so readers can share dst.
+	 */
+	private void read(int first, int last, long [] offsets, long position, long length, ByteBuffer dst, int base) throws IOException {
+		long end = position+length;
+		ByteBuffer target = dst.duplicate();
+
+		//  copy the cached chunks at the start of the run without querying them
+		JdbcChunkCache cache = factory.getChunkCache();
+		if( cache.isEnabled()) {
+			ByteBuffer hit;
+			while( first <= last && (hit = cache.getBuffer(file.getFileId(), first)) != null 
+					&& hit.remaining() == offsets[first]-offsets[first-1]) {
+				place(hit, offsets[first-1], position, end, target, base);
+				first++;
+			}
+			if( first > last ) {
+				return;
+			}
+		}
+
+		try(Connection con = factory.getConnection()) {
+			con.setAutoCommit(false);
+			try(PreparedStatement pstmt = con.prepareStatement(SELECT_RANGE)) {
+				pstmt.setFetchSize(factory.getReadFetchSize());
+				pstmt.setLong(1, file.getFileId());
+				pstmt.setLong(2, first);
+				pstmt.setLong(3, last);
+				try(ResultSet rs = pstmt.executeQuery()) {
+					while( rs.next()) {
+						int chunk = rs.getInt(1);
+						int len = rs.getInt(2);
+						byte [] data;
+						try(InputStream in = rs.getBinaryStream(3)) {
+							data = in == null ? new byte[0] : in.readNBytes(len);
+						}
+						place(ByteBuffer.wrap(data), offsets[chunk-1], position, end, target, base);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Copy the part of a chunk that falls in [position, end) to target at base + (offset - position).
+	 */
+	private static void place(ByteBuffer chunk, long chunkStart, long position, long end, ByteBuffer target, int base) {
+		long from = Math.max(position, chunkStart);
+		long to = Math.min(end, chunkStart+chunk.remaining());
+		if( to > from ) {
+			int at = chunk.position()+(int)(from-chunkStart);
+			chunk.limit(at+(int)(to-from)).position(at);
+			target.position(base+(int)(from-position));
+			target.put(chunk);
+		}
+	}
+
+}
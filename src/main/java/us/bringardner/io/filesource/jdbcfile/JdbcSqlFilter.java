@@ -0,0 +1,25 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.util.List;
+
+import us.bringardner.io.filesource.FileSourceFilter;
+
+/**
+ * A FileSourceFilter that can be translated into a condition on file_source.file,
+ * so JdbcFileSource only reads the matching rows from the database.
+ * 
+ * See us.bringardner.io.filesource.jdbcfile.filter for the standard implementations.
+ */
+public interface JdbcSqlFilter extends FileSourceFilter {
+
+	/**
+	 * Append a condition on the columns of file_source.file.
+	 *  
+	 * @param where - append the condition (without a leading 'and')
+	 * @param params - add the values for any ? in the condition
+	 * @return true if the condition is an exact translation of accept(), 
+	 * false if accept() must still be applied to the rows selected.
+	 */
+	public boolean appendWhere(StringBuilder where, List<Object> params);
+
+}
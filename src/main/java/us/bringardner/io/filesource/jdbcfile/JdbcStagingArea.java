@@ -0,0 +1,149 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the fileids atomic writes stage their chunks under.
+ *
+ * No file row has a negative fileid. A staging id is -1-(fileid<<SEQUENCE_BITS | sequence),
+ * so every writer gets it's own id even when several write the same file, and the staging
+ * ids of one file fall in a single range. The sequence starts at a random value so writers
+ * in other processes are unlikely to pick the same id either.
+ *
+ * Chunks a writer never moved or deleted, because the process died, are removed with the
+ * file or by sweep(), see JdbcFileSourceFactory.sweepStagedChunks().
+ */
+class JdbcStagingArea {
+
+	//  leaves 43 bits for the fileid
+	public static final int SEQUENCE_BITS = 20;
+	private static final long SEQUENCE_MASK = (1L<<SEQUENCE_BITS)-1;
+
+	private AtomicLong sequence = new AtomicLong(new Random().nextInt());
+	//  ids of the writers that are still open
+	private Set<Long> active = ConcurrentHashMap.newKeySet();
+
+	/**
+	 *
+	 * @param fileid
+	 * @return a staging id no other open writer of this factory is using
+	 */
+	long open(long fileid) {
+		long ret;
+		do {
+			ret = -1-((fileid<<SEQUENCE_BITS) | (sequence.getAndIncrement() & SEQUENCE_MASK));
+		} while( !active.add(ret));
+
+		return ret;
+	}
+
+	/**
+	 * The writer is done with stagingId, it's chunks have been moved or deleted.
+	 * @param stagingId
+	 */
+	void close(long stagingId) {
+		active.remove(stagingId);
+	}
+
+	/**
+	 * @param fileid
+	 * @return the lowest staging id of fileid
+	 */
+	static long lowest(long fileid) {
+		return -1-((fileid<<SEQUENCE_BITS) | SEQUENCE_MASK);
+	}
+
+	/**
+	 * @param fileid
+	 * @return the highest staging id of fileid
+	 */
+	static long highest(long fileid) {
+		return -1-(fileid<<SEQUENCE_BITS);
+	}
+
+	/**
+	 * @param stagingId
+	 * @return the fileid stagingId was handed out for
+	 */
+	static long owner(long stagingId) {
+		return (-1-stagingId)>>>SEQUENCE_BITS;
+	}
+
+	/**
+	 * Delete the staged chunks of every writer of the files, a writer that is still open fails on close.
+	 * There are only staged chunks while writes are in flight, so they are listed once and the ones 
+	 * that belong to the files are deleted by id. The caller owns the transaction.
+	 *
+	 * @param con
+	 * @param fileids
+	 * @throws SQLException
+	 */
+	void delete(Connection con, Collection<Long> fileids) throws SQLException {
+		Set<Long> owners = new HashSet<>(fileids);
+		List<Long> ids = new ArrayList<>();
+		for(long id : list(con)) {
+			if( owners.contains(owner(id))) {
+				ids.add(id);
+			}
+		}
+		purge(con, ids);
+	}
+
+	/**
+	 * @return every fileid that has staged chunks
+	 */
+	private List<Long> list(Connection con) throws SQLException {
+		List<Long> ret = new ArrayList<>();
+		try(PreparedStatement pstmt = con.prepareStatement(
+				"select distinct fileid from file_source.file_data where fileid < 0")) {
+			try(ResultSet rs = pstmt.executeQuery()) {
+				while( rs.next()) {
+					ret.add(rs.getLong(1));
+				}
+			}
+		}
+		return ret;
+	}
+
+	private int purge(Connection con, List<Long> stagingIds) throws SQLException {
+		int ret = 0;
+		try(PreparedStatement pstmt = con.prepareStatement("delete from file_source.file_data where fileid = ?")) {
+			for(long id : stagingIds) {
+				pstmt.setLong(1, id);
+				ret += pstmt.executeUpdate();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Delete every staged chunk that doesn't belong to an open writer of this factory.
+	 * Writers in other processes aren't known here, so only sweep when nothing else is writing.
+	 *
+	 * @param con
+	 * @return the number of chunks deleted
+	 * @throws SQLException
+	 */
+	int sweep(Connection con) throws SQLException {
+		List<Long> stale = new ArrayList<>();
+		for(long id : list(con)) {
+			if( !active.contains(id)) {
+				stale.add(id);
+			}
+		}
+
+		return purge(con, stale);
+	}
+
+}
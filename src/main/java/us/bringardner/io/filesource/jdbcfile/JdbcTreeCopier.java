@@ -0,0 +1,135 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies a file or directory tree inside the database with INSERT ... SELECT so
+ * no data leaves the server.
+ *
+ * Each directory costs three statements no matter how many children it has,
+ * one to copy the child rows, one to copy the children's file_data and one to find
+ * the sub directories.
+ *
+ * The copy is owned by the current user and keeps the group, permissions and
+ * modified time of the source. The caller owns the transaction.
+ */
+class JdbcTreeCopier {
+
+	//  everything except fileid, parentid, name, owner and the create and access times
+	private static final String COLUMNS = "group_name, last_modified_date"
+			+ ", owner_readable, owner_writeable, owner_executable"
+			+ ", group_readable, group_writeable, group_executable"
+			+ ", other_readable, other_writeable, other_executable"
+			+ ", file_type, length, chunk_count";
+
+	private static final String COPY_ROW = "insert into file_source.file (parentid, name, owner, "+COLUMNS+")"
+			+ " select ?, ?, ?, "+COLUMNS+" from file_source.file where fileid = ?";
+
+	private static final String COPY_DATA = "insert into file_source.file_data (chunk_number, fileid, length, data)"
+			+ " select chunk_number, ?, length, data from file_source.file_data where fileid = ?";
+
+	private static final String COPY_KIDS = "insert into file_source.file (parentid, name, owner, "+COLUMNS+")"
+			+ " select ?, name, ?, "+COLUMNS+" from file_source.file where parentid = ? and fileid <> parentid";
+
+	//  joins the source children to their new copies by name
+	private static final String PAIRS = " from file_source.file s"
+			+ " join file_source.file n on n.parentid = ? and n.name = s.name";
+
+	private static final String COPY_KIDS_DATA = "insert into file_source.file_data (chunk_number, fileid, length, data)"
+			+ " select d.chunk_number, n.fileid, d.length, d.data"+PAIRS
+			+ " join file_source.file_data d on d.fileid = s.fileid"
+			+ " where s.parentid = ? and s.fileid <> s.parentid";
+
+	private static final String SELECT_KID_DIRS = "select s.fileid, n.fileid"+PAIRS
+			+ " where s.parentid = ? and s.fileid <> s.parentid and s.file_type = ?";
+
+	private static final String SELECT_ID = "select fileid from file_source.file where parentid = ? and name = ?";
+
+	private JdbcFileSourceFactory factory;
+
+	JdbcTreeCopier(JdbcFileSourceFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 *
+	 * @param con
+	 * @param fileid of the file or directory to copy
+	 * @param parentid of the new copy
+	 * @param name of the new copy
+	 * @return the fileid of the new copy
+	 * @throws SQLException
+	 */
+	long copy(Connection con, long fileid, long parentid, String name) throws SQLException {
+		String owner = factory.getUserId();
+
+		try(PreparedStatement pstmt = con.prepareStatement(COPY_ROW)) {
+			pstmt.setLong(1, parentid);
+			pstmt.setString(2, name);
+			pstmt.setString(3, owner);
+			pstmt.setLong(4, fileid);
+			if( pstmt.executeUpdate() != 1) {
+				throw new SQLException("Can't copy fileid "+fileid);
+			}
+		}
+
+		long ret = 0;
+		try(PreparedStatement pstmt = con.prepareStatement(SELECT_ID)) {
+			pstmt.setLong(1, parentid);
+			pstmt.setString(2, name);
+			try(ResultSet rs = pstmt.executeQuery()) {
+				if( !rs.next()) {
+					throw new SQLException("Can't find copy of fileid "+fileid);
+				}
+				ret = rs.getLong(1);
+			}
+		}
+
+		try(PreparedStatement pstmt = con.prepareStatement(COPY_DATA)) {
+			pstmt.setLong(1, ret);
+			pstmt.setLong(2, fileid);
+			pstmt.executeUpdate();
+		}
+
+		//  walk the directories breadth first as (source, copy) pairs
+		List<long[]> dirs = new ArrayList<>();
+		dirs.add(new long[] {fileid,ret});
+		while( !dirs.isEmpty()) {
+			List<long[]> next = new ArrayList<>();
+			try(PreparedStatement kids = con.prepareStatement(COPY_KIDS);
+					PreparedStatement data = con.prepareStatement(COPY_KIDS_DATA);
+					PreparedStatement subDirs = con.prepareStatement(SELECT_KID_DIRS)) {
+				for(long [] dir : dirs) {
+					kids.setLong(1, dir[1]);
+					kids.setString(2, owner);
+					kids.setLong(3, dir[0]);
+					if( kids.executeUpdate() == 0 ) {
+						continue;
+					}
+
+					data.setLong(1, dir[1]);
+					data.setLong(2, dir[0]);
+					data.executeUpdate();
+
+					subDirs.setLong(1, dir[1]);
+					subDirs.setLong(2, dir[0]);
+					subDirs.setString(3, JdbcFileSource.DIRECTORY);
+					try(ResultSet rs = subDirs.executeQuery()) {
+						while( rs.next()) {
+							next.add(new long[] {rs.getLong(1),rs.getLong(2)});
+						}
+					}
+				}
+			}
+			dirs = next;
+		}
+
+		return ret;
+	}
+
+}
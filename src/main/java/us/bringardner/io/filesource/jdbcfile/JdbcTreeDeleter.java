@@ -0,0 +1,131 @@
+package us.bringardner.io.filesource.jdbcfile;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes the file and file_data rows, staged chunks included, of an entire subtree with a few set based statements.
+ *
+ * Where the database supports recursive common table expressions the subtree is
+ * found with a single query. Otherwise the tree is walked one level at a time with
+ * batched IN lists. Either way the ids are collected first and deleted in batches,
+ * MySQL won't delete from a table that the delete's own subquery selects from.
+ *
+ * The caller owns the transaction.
+ */
+class JdbcTreeDeleter {
+
+	//  keeps IN lists well under every driver's parameter limit
+	public static final int BATCH_SIZE = 500;
+
+	private static final String TREE = "tree (fileid) as ("
+			+ "select fileid from file_source.file where fileid = ?"
+			+ " union all"
+			+ " select f.fileid from file_source.file f, tree t where f.parentid = t.fileid and f.fileid <> t.fileid)";
+
+	private JdbcFileSourceFactory factory;
+
+	JdbcTreeDeleter(JdbcFileSourceFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 *
+	 * @param con
+	 * @param fileid of the top of the subtree
+	 * @return the number of file rows deleted
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	long delete(Connection con, long fileid) throws SQLException, IOException {
+		return factory.isRecursiveQuerySupported() ? deleteTree(con, fileid) : deleteByLevel(con, fileid);
+	}
+
+	private long deleteTree(Connection con, long fileid) throws SQLException {
+		List<Long> all = new ArrayList<>();
+		try(PreparedStatement pstmt = con.prepareStatement("with recursive "+TREE+" select fileid from tree")) {
+			pstmt.setLong(1, fileid);
+			try(ResultSet rs = pstmt.executeQuery()) {
+				while( rs.next()) {
+					all.add(rs.getLong(1));
+				}
+			}
+		}
+
+		return delete(con, all);
+	}
+
+	private long deleteByLevel(Connection con, long fileid) throws SQLException {
+		//  collect the ids top down, only directories can have children
+		List<Long> all = new ArrayList<>();
+		List<Long> level = new ArrayList<>();
+		level.add(fileid);
+		all.add(fileid);
+
+		while( !level.isEmpty()) {
+			List<Long> next = new ArrayList<>();
+			for(int start=0,sz=level.size(); start < sz; start+=BATCH_SIZE ) {
+				List<Long> batch = level.subList(start, Math.min(sz, start+BATCH_SIZE));
+				String sql = "select fileid, file_type from file_source.file where parentid in ("+params(batch.size())+")";
+				try(PreparedStatement pstmt = con.prepareStatement(sql)) {
+					bind(pstmt, batch);
+					try(ResultSet rs = pstmt.executeQuery()) {
+						while( rs.next()) {
+							long id = rs.getLong(1);
+							if( id == fileid ) {
+								//  the root is it's own parent
+								continue;
+							}
+							all.add(id);
+							if( JdbcFileSource.DIRECTORY.equals(rs.getString(2))) {
+								next.add(id);
+							}
+						}
+					}
+				}
+			}
+			level = next;
+		}
+
+		return delete(con, all);
+	}
+
+	private long delete(Connection con, List<Long> all) throws SQLException {
+		factory.getStagingArea().delete(con, all);
+		long ret = 0;
+		for(int start=0,sz=all.size(); start < sz; start+=BATCH_SIZE ) {
+			List<Long> batch = all.subList(start, Math.min(sz, start+BATCH_SIZE));
+			String in = " where fileid in ("+params(batch.size())+")";
+			try(PreparedStatement pstmt = con.prepareStatement("delete from file_source.file_data"+in)) {
+				bind(pstmt, batch);
+				pstmt.executeUpdate();
+			}
+			try(PreparedStatement pstmt = con.prepareStatement("delete from file_source.file"+in)) {
+				bind(pstmt, batch);
+				ret += pstmt.executeUpdate();
+			}
+		}
+
+		return ret;
+	}
+
+	private static String params(int cnt) {
+		StringBuilder ret = new StringBuilder("?");
+		for (int idx = 1; idx < cnt; idx++) {
+			ret.append(",?");
+		}
+		return ret.toString();
+	}
+
+	private static void bind(PreparedStatement pstmt, List<Long> ids) throws SQLException {
+		for (int idx = 0,sz=ids.size(); idx < sz; idx++) {
+			pstmt.setLong(idx+1, ids.get(idx));
+		}
+	}
+
+}
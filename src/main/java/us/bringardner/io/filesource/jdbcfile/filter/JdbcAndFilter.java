@@ -0,0 +1,58 @@
+package us.bringardner.io.filesource.jdbcfile.filter;
+
+import java.util.List;
+
+import us.bringardner.io.filesource.FileSource;
+import us.bringardner.io.filesource.FileSourceFilter;
+import us.bringardner.io.filesource.jdbcfile.JdbcSqlFilter;
+
+/**
+ * Accept files that match all of the filters.
+ * 
+ * The filters that implement JdbcSqlFilter are translated to SQL, 
+ * any others are applied to the rows selected.
+ */
+public class JdbcAndFilter implements JdbcSqlFilter {
+
+	private FileSourceFilter [] filters;
+
+	public JdbcAndFilter(FileSourceFilter ... filters) {
+		this.filters = filters;
+	}
+
+	@Override
+	public boolean accept(FileSource file) {
+		for(FileSourceFilter f : filters) {
+			if( !f.accept(file)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean appendWhere(StringBuilder where, List<Object> params) {
+		boolean ret = true;
+		int cnt = 0;
+		where.append('(');
+		for(FileSourceFilter f : filters) {
+			if (f instanceof JdbcSqlFilter) {
+				if( cnt++ > 0 ) {
+					where.append(" and ");
+				}
+				where.append('(');
+				ret &= ((JdbcSqlFilter) f).appendWhere(where, params);
+				where.append(')');
+			} else {
+				ret = false;
+			}
+		}
+		if( cnt == 0 ) {
+			where.append("1=1");
+		}
+		where.append(')');
+
+		return ret;
+	}
+
+}
@@ -0,0 +1,50 @@
+package us.bringardner.io.filesource.jdbcfile.filter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import us.bringardner.io.filesource.FileSource;
+import us.bringardner.io.filesource.jdbcfile.JdbcSqlFilter;
+
+/**
+ * Accept files with min <= length <= max.
+ * Translated to length between ? and ?.
+ */
+public class JdbcLengthFilter implements JdbcSqlFilter {
+
+	private long min;
+	private long max;
+
+	public JdbcLengthFilter(long min, long max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	public static JdbcLengthFilter atLeast(long min) {
+		return new JdbcLengthFilter(min, Long.MAX_VALUE);
+	}
+
+	public static JdbcLengthFilter atMost(long max) {
+		return new JdbcLengthFilter(0, max);
+	}
+
+	@Override
+	public boolean accept(FileSource file) {
+		try {
+			long len = file.length();
+			return len >= min && len <= max;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean appendWhere(StringBuilder where, List<Object> params) {
+		where.append("length between ? and ?");
+		params.add(min);
+		params.add(max);
+		return true;
+	}
+
+}
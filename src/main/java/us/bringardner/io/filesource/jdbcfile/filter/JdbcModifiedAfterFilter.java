@@ -0,0 +1,43 @@
+package us.bringardner.io.filesource.jdbcfile.filter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import us.bringardner.io.filesource.FileSource;
+import us.bringardner.io.filesource.jdbcfile.JdbcSqlFilter;
+
+/**
+ * Accept files modified after a given time.
+ * Translated to last_modified_date > ?.
+ */
+public class JdbcModifiedAfterFilter implements JdbcSqlFilter {
+
+	private long time;
+
+	/**
+	 * 
+	 * @param time - milliseconds since the epoch
+	 */
+	public JdbcModifiedAfterFilter(long time) {
+		this.time = time;
+	}
+
+	@Override
+	public boolean accept(FileSource file) {
+		try {
+			return file.lastModified() > time;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean appendWhere(StringBuilder where, List<Object> params) {
+		where.append("last_modified_date > ?");
+		params.add(new Timestamp(time));
+		return true;
+	}
+
+}
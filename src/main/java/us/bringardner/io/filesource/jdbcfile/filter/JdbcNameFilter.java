@@ -0,0 +1,62 @@
+package us.bringardner.io.filesource.jdbcfile.filter;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import us.bringardner.io.filesource.FileSource;
+import us.bringardner.io.filesource.jdbcfile.JdbcSqlFilter;
+
+/**
+ * Accept files whose name matches a glob pattern (* matches any characters, ? matches one).
+ * Translated to name like ?.
+ * 
+ * Note: the database collation decides case sensitivity of the SQL match.
+ */
+public class JdbcNameFilter implements JdbcSqlFilter {
+
+	private static final char ESCAPE = '!';
+
+	private String glob;
+	private String like;
+	private Pattern pattern;
+
+	public JdbcNameFilter(String glob) {
+		this.glob = glob;
+		StringBuilder l = new StringBuilder();
+		StringBuilder r = new StringBuilder();
+		for(char c : glob.toCharArray()) {
+			switch (c) {
+			case '*': l.append('%'); r.append(".*"); break;
+			case '?': l.append('_'); r.append('.'); break;
+			case '%':
+			case '_':
+			case ESCAPE:
+				l.append(ESCAPE).append(c);
+				r.append(Pattern.quote(String.valueOf(c)));
+				break;
+			default:
+				l.append(c);
+				r.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		like = l.toString();
+		pattern = Pattern.compile(r.toString(), Pattern.DOTALL);
+	}
+
+	public String getGlob() {
+		return glob;
+	}
+
+	@Override
+	public boolean accept(FileSource file) {
+		return pattern.matcher(file.getName()).matches();
+	}
+
+	@Override
+	public boolean appendWhere(StringBuilder where, List<Object> params) {
+		where.append("name like ? escape '"+ESCAPE+"'");
+		params.add(like);
+		return true;
+	}
+
+}
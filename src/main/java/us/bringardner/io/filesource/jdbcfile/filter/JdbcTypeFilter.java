@@ -0,0 +1,42 @@
+package us.bringardner.io.filesource.jdbcfile.filter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import us.bringardner.io.filesource.FileSource;
+import us.bringardner.io.filesource.jdbcfile.JdbcFileSourceFactory;
+import us.bringardner.io.filesource.jdbcfile.JdbcSqlFilter;
+
+/**
+ * Accept only files or only directories.
+ * Translated to file_type = ?.
+ */
+public class JdbcTypeFilter implements JdbcSqlFilter {
+
+	public static final JdbcTypeFilter FILES = new JdbcTypeFilter(JdbcFileSourceFactory.TYPE_FILE);
+	public static final JdbcTypeFilter DIRECTORIES = new JdbcTypeFilter(JdbcFileSourceFactory.TYPE_DIR);
+
+	private String type;
+
+	private JdbcTypeFilter(String type) {
+		this.type = type;
+	}
+
+	@Override
+	public boolean accept(FileSource file) {
+		try {
+			return JdbcFileSourceFactory.TYPE_DIR.equals(type) ? file.isDirectory() : file.isFile();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean appendWhere(StringBuilder where, List<Object> params) {
+		where.append("file_type = ?");
+		params.add(type);
+		return true;
+	}
+
+}
@@ -123,7 +123,12 @@ public abstract class FileSourceAbstractTestClass {
 			String ddl = new String(data);
 			try(Connection con = ((JdbcFileSourceFactory)factory).getConnection()) {
 				try(Statement stmt = con.createStatement()) {
-					stmt.executeUpdate(ddl);					
+					//  one statement at a time, hsqldb compiles a whole script before running any of it
+					for(String sql : ddl.split(";")) {
+						if( !sql.isBlank()) {
+							stmt.executeUpdate(sql);
+						}
+					}
 				}
 			}
 		}
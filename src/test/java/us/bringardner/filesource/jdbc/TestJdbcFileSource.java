@@ -25,22 +25,40 @@
  */
 package us.bringardner.filesource.jdbc;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.UserPrincipal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -49,8 +67,20 @@ import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
+import us.bringardner.database.pool.ObjectPool;
 import us.bringardner.io.filesource.FileSource;
 import us.bringardner.io.filesource.FileSourceFactory;
+import us.bringardner.io.filesource.FileSourceFilter;
+import us.bringardner.io.filesource.ISeekableInputStream;
+import us.bringardner.io.filesource.jdbcfile.JdbcAccessTimePolicy;
+import us.bringardner.io.filesource.jdbcfile.JdbcFileOutputStream;
+import us.bringardner.io.filesource.jdbcfile.JdbcFileSource;
+import us.bringardner.io.filesource.jdbcfile.JdbcFileSourceFactory;
+import us.bringardner.io.filesource.jdbcfile.JdbcPathCache;
+import us.bringardner.io.filesource.jdbcfile.filter.JdbcAndFilter;
+import us.bringardner.io.filesource.jdbcfile.filter.JdbcLengthFilter;
+import us.bringardner.io.filesource.jdbcfile.filter.JdbcNameFilter;
+import us.bringardner.io.filesource.jdbcfile.filter.JdbcTypeFilter;
 
 
 @TestMethodOrder(OrderAnnotation.class)
@@ -68,6 +98,40 @@ public class TestJdbcFileSource extends FileSourceAbstractTestClass {
 		FileSourceAbstractTestClass.tearDown();
 	}
 
+	/**
+	 * 
+	 * @param length
+	 * @param step
+	 * @return length bytes where byte idx is (byte)(idx*step)
+	 */
+	private static byte [] pattern(int length, int step) {
+		byte [] ret = new byte[length];
+		for (int idx = 0; idx < ret.length; idx++) {
+			ret[idx] = (byte) (idx*step);
+		}
+		return ret;
+	}
+
+	/**
+	 * Create name in the remote test dir holding data.
+	 */
+	private static JdbcFileSource createFile(String name, byte [] data) throws IOException {
+		JdbcFileSource ret = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/"+name);
+		try(OutputStream out = ret.getOutputStream()) {
+			out.write(data);
+		}
+		return ret;
+	}
+
+	/**
+	 * Change a factory setting until the returned AutoCloseable is closed, for use in try-with-resources.
+	 */
+	private static <T> AutoCloseable setting(Supplier<T> getter, Consumer<T> setter, T value) {
+		T old = getter.get();
+		setter.accept(value);
+		return () -> setter.accept(old);
+	}
+
 	
 
 	
@@ -270,6 +334,1160 @@ public class TestJdbcFileSource extends FileSourceAbstractTestClass {
 	}
 
 
+	@Test
+	@Order(14)
+	public void testDeepPathResolution() throws IOException {
+		String path = remoteTestFileDirPath+"/a/b/c/d/e/f/g/h/i/j";
+		FileSource dir = factory.createFileSource(path);
+		assertTrue(dir.mkdirs(),"Could not create "+path);
+
+		//  a cold object resolves the whole chain at once
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(path);
+		assertTrue(file.exists(),"Deep path does not exist");
+		FileSource parent = file.getParentFile();
+		while( parent != null ) {
+			assertTrue(((JdbcFileSource)parent).getFileId()>0,"Parent not resolved "+parent);
+			parent = parent.getParentFile();
+		}
+
+		assertFalse(factory.createFileSource(path+"/k/l").exists(),"Non existent path exists");
+
+		deleteAll(factory.createFileSource(remoteTestFileDirPath+"/a"));
+	}
+
+	@Test
+	@Order(15)
+	public void testPathCacheInvalidation() throws IOException {
+		FileSource dir = factory.createFileSource(remoteTestFileDirPath+"/cache/one/two");
+		assertTrue(dir.mkdirs(),"Could not create "+dir);
+		assertTrue(factory.createFileSource(remoteTestFileDirPath+"/cache/one/two").exists(),"Cached dir does not exist");
+
+		FileSource one = factory.createFileSource(remoteTestFileDirPath+"/cache/one");
+		FileSource renamed = factory.createFileSource(remoteTestFileDirPath+"/cache/renamed");
+		renameAndValidate(one, renamed);
+
+		assertFalse(factory.createFileSource(remoteTestFileDirPath+"/cache/one/two").exists(),"Stale child after rename");
+		assertTrue(factory.createFileSource(remoteTestFileDirPath+"/cache/renamed/two").exists(),"Renamed child does not exist");
+
+		deleteAll(factory.createFileSource(remoteTestFileDirPath+"/cache"));
+		assertFalse(factory.createFileSource(remoteTestFileDirPath+"/cache/renamed/two").exists(),"Stale child after delete");
+	}
+
+	@Test
+	@Order(16)
+	public void testListingCache() throws IOException {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int ttl = jf.getFieldTimeToLive(JdbcFileSourceFactory.KIDS);
+		//  long enough that only invalidation can change the listing
+		jf.setFieldTimeToLive(JdbcFileSourceFactory.KIDS, 60000);
+		try {
+			FileSource dir = factory.createFileSource(remoteTestFileDirPath+"/listing");
+			assertTrue(dir.mkdirs(),"Could not create "+dir);
+			assertEquals(0, dir.list().length,"New dir is not empty");
+
+			FileSource file = dir.getChild("one.txt");
+			assertTrue(file.createNewFile(),"Could not create "+file);
+			assertEquals(1, factory.createFileSource(remoteTestFileDirPath+"/listing").list().length,"Listing not invalidated by create");
+
+			FileSource renamed = dir.getChild("two.txt");
+			renameAndValidate(file, renamed);
+			assertEquals("two.txt", factory.createFileSource(remoteTestFileDirPath+"/listing").list()[0],"Listing not invalidated by rename");
+
+			assertTrue(renamed.delete(),"Could not delete "+renamed);
+			assertEquals(0, factory.createFileSource(remoteTestFileDirPath+"/listing").list().length,"Listing not invalidated by delete");
+			assertTrue(dir.delete(),"Could not delete "+dir);
+		} finally {
+			jf.setFieldTimeToLive(JdbcFileSourceFactory.KIDS, ttl);
+		}
+	}
+
+	@Test
+	@Order(17)
+	public void testStreamingListing() throws IOException {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int pageSize = jf.getListPageSize();
+		jf.setListPageSize(7);
+		try {
+			JdbcFileSource dir = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/paged");
+			assertTrue(dir.mkdirs(),"Could not create "+dir);
+			int cnt = 50;
+			for (int idx = 0; idx < cnt; idx++) {
+				assertTrue(dir.getChild(String.format("file%03d.txt", idx)).createNewFile(),"Can't create file "+idx);
+			}
+
+			assertEquals(cnt, dir.getChildCount(),"Wrong child count");
+			Iterator<JdbcFileSource> it = dir.iterateFiles();
+			for (int idx = 0; idx < cnt; idx++) {
+				assertTrue(it.hasNext(),"Iterator ended early at "+idx);
+				assertEquals(String.format("file%03d.txt", idx), it.next().getName(),"Out of order");
+			}
+			assertFalse(it.hasNext(),"Iterator has too many entries");
+			assertEquals(cnt, dir.streamFiles().count(),"Wrong stream count");
+
+			deleteAll(dir);
+		} finally {
+			jf.setListPageSize(pageSize);
+		}
+	}
+
+	@Test
+	@Order(18)
+	public void testSqlFilters() throws IOException {
+		JdbcFileSource dir = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/filtered");
+		assertTrue(dir.mkdirs(),"Could not create "+dir);
+		for (int idx = 0; idx < 10; idx++) {
+			FileSource file = dir.getChild("file"+idx+".txt");
+			try(OutputStream out = file.getOutputStream()) {
+				out.write(new byte[idx*10]);
+			}
+		}
+		assertTrue(dir.getChild("sub").mkdir(),"Could not create sub");
+
+		assertEquals(10, dir.list(new JdbcNameFilter("file?.txt")).length,"Wrong name match");
+		assertEquals(0, dir.list(new JdbcNameFilter("file%")).length,"Like characters not escaped");
+		assertEquals(1, dir.list(JdbcTypeFilter.DIRECTORIES).length,"Wrong dir count");
+		assertEquals(5, dir.list(new JdbcAndFilter(JdbcTypeFilter.FILES,JdbcLengthFilter.atLeast(50))).length,"Wrong length match");
+		//  a filter that can't be translated is still applied
+		FileSourceFilter odd = (file)-> file.getName().matches("file[13579].txt");
+		//  file1, file3 and file5, atMost includes the bound
+		assertEquals(3, dir.list(new JdbcAndFilter(JdbcLengthFilter.atMost(50),odd)).length,"Java filter not applied");
+
+		deleteAll(dir);
+	}
+
+	@Test
+	@Order(19)
+	public void testLengthFromRow() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/length.txt");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write(new byte[2500]);
+		}
+		JdbcFileSource cold = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/length.txt");
+		assertEquals(2500, cold.length(),"Wrong length on a cold object");
+		assertTrue(cold.checkLength(false),"Length does not match file_data");
+
+		//  damage the row and repair it
+		try(Connection con = jf.getConnection(); Statement stmt = con.createStatement()) {
+			stmt.executeUpdate("update file_source.file set length=1 where fileid="+cold.getFileId());
+		}
+		assertEquals(1, jf.repairLengths(),"Wrong repair count");
+		cold.refresh();
+		assertEquals(2500, cold.length(),"Length not repaired");
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(20)
+	public void testDeleteRecursive() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		boolean supported = jf.isRecursiveQuerySupported();
+		try {
+			for(boolean cte : new boolean[] {true,false}) {
+				jf.setRecursiveQuerySupported(cte);
+				String path = remoteTestFileDirPath+"/tree";
+				for (int idx = 0; idx < 3; idx++) {
+					FileSource dir = factory.createFileSource(path+"/d"+idx+"/e");
+					assertTrue(dir.mkdirs(),"Could not create "+dir);
+					try(OutputStream out = factory.createFileSource(dir.getAbsolutePath()+"/file.txt").getOutputStream()) {
+						out.write(new byte[2500]);
+					}
+				}
+
+				JdbcFileSource top = (JdbcFileSource) factory.createFileSource(path);
+				assertEquals(10, top.deleteRecursive(),"Wrong delete count cte="+cte);
+				assertFalse(factory.createFileSource(path+"/d1/e/file.txt").exists(),"Child still exists cte="+cte);
+				assertFalse(factory.createFileSource(path).exists(),"Top still exists cte="+cte);
+			}
+		} finally {
+			jf.setRecursiveQuerySupported(supported);
+		}
+	}
+
+	@Test
+	@Order(21)
+	public void testCopyTo() throws Exception {
+		String path = remoteTestFileDirPath+"/copySource";
+		byte [] data = new byte[2500];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte) idx;
+		}
+		for (int idx = 0; idx < 3; idx++) {
+			FileSource dir = factory.createFileSource(path+"/d"+idx);
+			assertTrue(dir.mkdirs(),"Could not create "+dir);
+			try(OutputStream out = factory.createFileSource(dir.getAbsolutePath()+"/file.txt").getOutputStream()) {
+				out.write(data);
+			}
+		}
+
+		JdbcFileSource source = (JdbcFileSource) factory.createFileSource(path);
+		FileSource target = factory.createFileSource(remoteTestFileDirPath+"/copyTarget");
+		assertTrue(source.copyTo(target),"Copy failed");
+		assertFalse(source.copyTo(target),"Copied over an existing target");
+		assertEquals(3, target.listFiles().length,"Wrong child count");
+
+		FileSource file = factory.createFileSource(target.getAbsolutePath()+"/d2/file.txt");
+		assertEquals(data.length, file.length(),"Wrong copy length");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong copy content");
+		}
+
+		source.deleteRecursive();
+		((JdbcFileSource)target).deleteRecursive();
+	}
+
+	@Test
+	@Order(22)
+	public void testPositionedRead() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int size = jf.getChunk_size();
+		byte [] data = new byte[size*4+123];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte) (idx*31);
+		}
+		FileSource file = factory.createFileSource(remoteTestFileDirPath+"/positioned.bin");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write(data);
+		}
+
+		boolean cursorReads = jf.isCursorReads();
+		try {
+			for(boolean cursor : new boolean[] {false,true}) {
+				jf.setCursorReads(cursor);
+				//  start just before, on and just after every chunk edge, the last ones are past the end
+				for(int chunk = 0; chunk <= 5; chunk++) {
+					for(int delta = -1; delta <= 1; delta++) {
+						int pos = Math.max(0, chunk*size+delta);
+						try(InputStream in = file.getInputStream(pos)) {
+							assertArrayEquals(Arrays.copyOfRange(data, Math.min(pos, data.length), data.length), in.readAllBytes(),"Wrong data at "+pos+" cursor="+cursor);
+						}
+					}
+				}
+
+				try(InputStream in = file.getInputStream()) {
+					//  one read that spans three chunks
+					byte [] buf = new byte[size*2+20];
+					assertEquals(size-10, in.skip(size-10),"Wrong skip in the first chunk");
+					assertEquals(buf.length, in.read(buf, 0, buf.length),"Wrong read across chunks");
+					assertArrayEquals(Arrays.copyOfRange(data, size-10, size*3+10), buf,"Wrong data across chunks cursor="+cursor);
+
+					//  a skip that lands in the last chunk
+					int at = size*3+10;
+					assertEquals(size+5, in.skip(size+5),"Wrong skip across chunks");
+					at += size+5;
+					assertEquals(data[at]&0xff, in.read(),"Wrong byte after skip cursor="+cursor);
+					at++;
+
+					assertEquals(data.length-at, in.skip(data.length),"Wrong skip past the end");
+					assertEquals(-1, in.read(),"Not at EOF");
+					assertEquals(0, in.skip(10),"Skipped at EOF");
+				}
+			}
+		} finally {
+			jf.setCursorReads(cursorReads);
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(23)
+	public void testPrefetchRead() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*5+17, 7);
+		FileSource file = createFile("prefetch.bin", data);
+
+		//  less than two chunks so the reader has to wait on the budget
+		try(AutoCloseable depth = setting(jf::getPrefetchDepth, jf::setPrefetchDepth, 3);
+				AutoCloseable memory = setting(jf::getPrefetchMemory, jf::setPrefetchMemory, jf.getChunk_size()+jf.getChunk_size()/2)) {
+			try(InputStream in = file.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes(),"Wrong prefetched data");
+			}
+			try(InputStream in = file.getInputStream(data.length-20)) {
+				assertArrayEquals(Arrays.copyOfRange(data, data.length-20, data.length), in.readAllBytes(),"Wrong prefetched data at offset");
+			}
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(24)
+	public void testParallelRead() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*20+33, 13);
+		JdbcFileSource file = createFile("parallel.bin", data);
+
+		try(AutoCloseable readers = setting(jf::getParallelReads, jf::setParallelReads, 4)) {
+			ByteBuffer buffer = ByteBuffer.allocate(data.length);
+			assertEquals(data.length-10, file.readRange(10, data.length, buffer),"Wrong range length");
+			assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), Arrays.copyOf(buffer.array(), data.length-10),"Wrong range data");
+			assertEquals(-1, file.readRange(data.length, 10, buffer),"Read past EOF");
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(data.length, file.transferTo(Channels.newChannel(out)),"Wrong transfer length");
+			assertArrayEquals(data, out.toByteArray(),"Wrong transfer data");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(25)
+	public void testSeekableRead() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*3+5, 17);
+		FileSource file = createFile("seekable.bin", data);
+
+		try(ISeekableInputStream in = file.getSeekableInputStream()) {
+			assertEquals(data.length, in.length(),"Wrong length");
+			//  read backwards across chunk boundaries
+			byte [] buf = new byte[64];
+			for(int pos = data.length-buf.length; pos >= 0; pos -= 1000) {
+				in.seek(pos);
+				assertEquals(buf.length, in.read(buf, 0, buf.length),"Short read at "+pos);
+				assertArrayEquals(Arrays.copyOfRange(data, pos, pos+buf.length), buf,"Wrong data at "+pos);
+				assertEquals(pos+buf.length, in.getFilePointer(),"Wrong pointer at "+pos);
+			}
+			in.seek(data.length-1);
+			assertEquals(data[data.length-1] & 0xff, in.read(),"Wrong last byte");
+			assertEquals(-1, in.read(),"Not at EOF");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(26)
+	public void testPositionRead() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*4+9, 11);
+		JdbcFileSource file = createFile("range.bin", data);
+
+		//  a range that spans a chunk boundary
+		int pos = jf.getChunk_size()*2-50;
+		byte [] buf = new byte[200];
+		assertEquals(100, file.read(pos, buf, 100, 100),"Wrong read length");
+		assertArrayEquals(Arrays.copyOfRange(data, pos, pos+100), Arrays.copyOfRange(buf, 100, 200),"Wrong range data");
+		assertEquals(9, file.read(data.length-9, buf, 0, buf.length),"Wrong read length at EOF");
+		assertEquals(-1, file.read(data.length, buf, 0, buf.length),"Read past EOF");
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(27)
+	public void testChunkCache() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*3+1, 3);
+		JdbcFileSource file = createFile("cached.bin", data);
+
+		try(AutoCloseable size = setting(jf::getChunkCacheSize, jf::setChunkCacheSize, data.length*2L)) {
+			try(InputStream in = file.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes(),"Wrong data");
+			}
+			assertEquals(data.length, jf.getChunkCache().getBytes(),"Chunks not cached");
+			try(InputStream in = file.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes(),"Wrong cached data");
+			}
+
+			//  a rewrite must not be served from the cache
+			data[0]++;
+			try(OutputStream out = file.getOutputStream()) {
+				out.write(data);
+			}
+			try(InputStream in = file.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes(),"Stale cached data");
+			}
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(28)
+	public void testTransferTo() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*2+77, 5);
+		JdbcFileSource file = createFile("transfer.bin", data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(data.length, file.transferTo(out),"Wrong transfer length");
+		assertArrayEquals(data, out.toByteArray(),"Wrong transfer data");
+
+		//  the rest of a partly read stream
+		try(InputStream in = file.getInputStream(100)) {
+			assertEquals(data[100] & 0xff, in.read(),"Wrong first byte");
+			out.reset();
+			assertEquals(data.length-101, in.transferTo(out),"Wrong rest length");
+			assertArrayEquals(Arrays.copyOfRange(data, 101, data.length), out.toByteArray(),"Wrong rest data");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(29)
+	public void testAccessTimePolicy() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/atime.txt");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write("Hello".getBytes());
+		}
+
+		JdbcAccessTimePolicy policy = jf.getAccessTimePolicy();
+		long old = (System.currentTimeMillis()/1000)*1000-60000;
+		try {
+			jf.setAccessTimePolicy(JdbcAccessTimePolicy.NOATIME);
+			assertTrue(file.setLastAccessTime(old),"Can't set access time");
+			file.getInputStream().close();
+			file.refresh();
+			assertEquals(old, file.lastAccessTime(),"NOATIME updated the access time");
+
+			jf.setAccessTimePolicy(JdbcAccessTimePolicy.LAZYTIME);
+			file.getInputStream().close();
+			assertTrue(file.lastAccessTime() > old,"Pending access time not visible");
+			jf.getLazyAccessTimes().flush();
+			file.refresh();
+			assertTrue(file.lastAccessTime() > old,"Access time not flushed");
+		} finally {
+			jf.setAccessTimePolicy(policy);
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(30)
+	public void testBatchedWrite() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*(jf.getWriteBatchSize()+2)+33, 7);
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/batch.bin");
+		int split = data.length/3;
+		try(OutputStream out = file.getOutputStream()) {
+			for (int idx = 0; idx < 10; idx++) {
+				out.write(data[idx]);
+			}
+			out.write(data, 10, split-10);
+		}
+		try(OutputStream out = file.getOutputStream(true)) {
+			out.write(data, split, data.length-split);
+		}
+
+		assertEquals(data.length, file.length(),"Wrong length");
+		assertTrue(file.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong data");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(31)
+	public void testAtomicWrite() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		String path = remoteTestFileDirPath+"/atomic.txt";
+		byte [] old = "The old content".getBytes();
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(path);
+		try(OutputStream out = file.getOutputStream()) {
+			out.write(old);
+		}
+
+		byte [] data = new byte[jf.getChunk_size()*3+5];
+		Arrays.fill(data, (byte)'x');
+		JdbcFileOutputStream out = (JdbcFileOutputStream) file.getOutputStream();
+		out.write(data);
+		out.flush();
+		try(InputStream in = factory.createFileSource(path).getInputStream()) {
+			assertArrayEquals(old, in.readAllBytes(),"Partial content is visible");
+		}
+		out.abort();
+		assertEquals(old.length, file.length(),"Wrong length after abort");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(old, in.readAllBytes(),"Wrong content after abort");
+		}
+
+		out = (JdbcFileOutputStream) file.getOutputStream();
+		out.write(data);
+		out.close();
+		assertEquals(data.length, file.length(),"Wrong length after close");
+		assertTrue(file.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong content after close");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(32)
+	public void testWriteBehind() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*10+3, 11);
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/writeBehind.bin");
+		try(AutoCloseable depth = setting(jf::getWriteBehindDepth, jf::setWriteBehindDepth, 2)) {
+			try(OutputStream out = file.getOutputStream()) {
+				out.write(data, 0, 7);
+				out.write(data, 7, data.length-7);
+			}
+		}
+
+		assertEquals(data.length, file.length(),"Wrong length");
+		assertTrue(file.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong data");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(33)
+	public void testParallelWrite() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		//  enough chunks to use every parallel write connection
+		byte [] data = pattern(jf.getChunk_size()*jf.getParallelWrites()*4+9, 13);
+		JdbcFileSource file = createFile("parallel.bin", "The old content".getBytes());
+
+		ByteBuffer src = ByteBuffer.wrap(data);
+		assertEquals(data.length, file.transferFrom(src),"Wrong transfer length");
+		assertFalse(src.hasRemaining(),"Buffer not consumed");
+		assertEquals(data.length, file.length(),"Wrong length");
+		assertTrue(file.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong data");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(34)
+	public void testDeleteRecursiveCte() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		boolean supported = jf.isRecursiveQuerySupported();
+		String path = remoteTestFileDirPath+"/cteTree";
+		String sub = path;
+		long [] ids = new long[4];
+		for (int idx = 0; idx < ids.length; idx++) {
+			sub = sub+"/level"+idx;
+			FileSource dir = factory.createFileSource(sub);
+			assertTrue(dir.mkdirs(),"Could not create "+dir);
+			JdbcFileSource file = (JdbcFileSource) factory.createFileSource(sub+"/file.txt");
+			try(OutputStream out = file.getOutputStream()) {
+				out.write(new byte[jf.getChunk_size()+10]);
+			}
+			ids[idx] = file.getFileId();
+		}
+
+		try {
+			jf.setRecursiveQuerySupported(true);
+			JdbcFileSource top = (JdbcFileSource) factory.createFileSource(path);
+			assertEquals(9, top.deleteRecursive(),"Wrong delete count");
+		} finally {
+			jf.setRecursiveQuerySupported(supported);
+		}
+
+		assertFalse(factory.createFileSource(sub).exists(),"Deepest directory still exists");
+		try(Connection con = jf.getConnection();
+				PreparedStatement pstmt = con.prepareStatement("select count(*) from file_source.file_data where fileid=?")) {
+			for(long id : ids) {
+				pstmt.setLong(1, id);
+				try(ResultSet rs = pstmt.executeQuery()) {
+					assertTrue(rs.next(),"No count");
+					assertEquals(0, rs.getLong(1),"file_data left for "+id);
+				}
+			}
+		}
+	}
+
+	@Test
+	@Order(35)
+	public void testCursorReadsReleaseConnection() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = new byte[jf.getChunk_size()*5+17];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte) (idx*3);
+		}
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/cursor.bin");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write(data);
+		}
+
+		boolean cursorReads = jf.isCursorReads();
+		try {
+			for(boolean cursor : new boolean[] {true,false}) {
+				jf.setCursorReads(cursor);
+				//  more early closes than the pool has connections, a leak runs the pool dry
+				for (int idx = 0; idx < ObjectPool.getDefaultMax()+5; idx++) {
+					int pos = (idx*997)%(data.length-10);
+					try(InputStream in = file.getInputStream(pos)) {
+						byte [] got = new byte[10];
+						assertEquals(10, in.readNBytes(got, 0, 10),"Short read at "+pos);
+						assertArrayEquals(Arrays.copyOfRange(data, pos, pos+10), got,"Wrong data at "+pos+" cursor="+cursor);
+					}
+				}
+				try(InputStream in = file.getInputStream()) {
+					assertArrayEquals(data, in.readAllBytes(),"Wrong data cursor="+cursor);
+				}
+			}
+		} finally {
+			jf.setCursorReads(cursorReads);
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(36)
+	public void testPrefetchBudgetUsedUp() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = pattern(jf.getChunk_size()*20+17, 17);
+		JdbcFileSource file = createFile("budget.bin", data);
+
+		List<InputStream> idle = new ArrayList<>();
+		try(AutoCloseable depth = setting(jf::getPrefetchDepth, jf::setPrefetchDepth, 4);
+				AutoCloseable memory = setting(jf::getPrefetchMemory, jf::setPrefetchMemory, jf.getChunk_size()*3)) {
+			//  streams that aren't being read hold the whole budget
+			for (int idx = 0; idx < 3; idx++) {
+				InputStream in = file.getInputStream();
+				assertEquals(data[0] & 0xff, in.read(),"Wrong first byte");
+				idle.add(in);
+			}
+			try(InputStream in = file.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes(),"Wrong data without budget");
+			}
+			for(InputStream in : idle) {
+				assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), in.readAllBytes(),"Wrong rest of idle stream");
+			}
+		} finally {
+			for(InputStream in : idle) {
+				in.close();
+			}
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(37)
+	public void testConcurrentAtomicWrites() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] first = new byte[jf.getChunk_size()*3+1];
+		byte [] second = new byte[jf.getChunk_size()*2+7];
+		Arrays.fill(first, (byte)'a');
+		Arrays.fill(second, (byte)'b');
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/concurrent.txt");
+
+		//  the second writer must not touch the first one's staged chunks
+		OutputStream out1 = file.getOutputStream();
+		out1.write(first);
+		out1.flush();
+		try(OutputStream out2 = factory.createFileSource(file.getAbsolutePath()).getOutputStream()) {
+			out2.write(second);
+		}
+		out1.close();
+		file.refresh();
+		assertEquals(first.length, file.length(),"Wrong length after the last close");
+		assertTrue(file.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(first, in.readAllBytes(),"Wrong content after the last close");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	private static long countStagedChunks(JdbcFileSourceFactory jf) throws Exception {
+		try(Connection con = jf.getConnection(); Statement stmt = con.createStatement();
+				ResultSet rs = stmt.executeQuery("select count(*) from file_source.file_data where fileid < 0")) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	@Test
+	@Order(38)
+	public void testStagedChunksCleanup() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = new byte[jf.getChunk_size()*2];
+		Arrays.fill(data, (byte)'s');
+		long before = countStagedChunks(jf);
+
+		//  deleting the file takes the staged chunks with it and the writer fails on close
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/staged.txt");
+		OutputStream deleted = file.getOutputStream();
+		deleted.write(data);
+		deleted.flush();
+		assertEquals(before+2, countStagedChunks(jf),"Chunks not staged");
+		assertTrue(file.delete(),"Can't delete "+file);
+		assertEquals(before, countStagedChunks(jf),"Staged chunks left by delete");
+		assertThrows(IOException.class, () -> deleted.close(),"Closed a stream of a deleted file");
+
+		//  the same through deleteRecursive
+		JdbcFileSource dir = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/stagedDir");
+		assertTrue(dir.mkdirs(),"Can't create "+dir);
+		JdbcFileOutputStream out2 = (JdbcFileOutputStream) factory.createFileSource(dir.getAbsolutePath()+"/staged.txt").getOutputStream();
+		out2.write(data);
+		out2.flush();
+		assertEquals(2, dir.deleteRecursive(),"Wrong number deleted");
+		assertEquals(before, countStagedChunks(jf),"Staged chunks left by deleteRecursive");
+		out2.abort();
+
+		//  sweepStagedChunks() deletes what a dead writer left and keeps what an open one staged
+		try(Connection con = jf.getConnection(); PreparedStatement pstmt = con.prepareStatement(
+				"insert into file_source.file_data (chunk_number,fileid,length,data) values(1,-1,1,?)")) {
+			pstmt.setBytes(1, new byte[] {1});
+			pstmt.executeUpdate();
+		}
+		file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/staged.txt");
+		OutputStream out = file.getOutputStream();
+		out.write(data);
+		out.flush();
+		jf.repairLengths();
+		assertEquals(3, countStagedChunks(jf),"repairLengths() deleted staged chunks");
+		assertEquals(1, jf.sweepStagedChunks(),"Wrong number of chunks swept");
+		assertEquals(2, countStagedChunks(jf),"Wrong staged chunks after the sweep");
+		out.close();
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong content after the sweep");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(39)
+	public void testConcurrentAtomicAppends() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] base = new byte[jf.getChunk_size()+10];
+		byte [] first = new byte[jf.getChunk_size()*2+3];
+		byte [] second = new byte[jf.getChunk_size()+7];
+		Arrays.fill(base, (byte)'0');
+		Arrays.fill(first, (byte)'a');
+		Arrays.fill(second, (byte)'b');
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/appends.txt");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write(base);
+		}
+
+		//  both streams start from the same end of file, the second close goes after the first
+		OutputStream out1 = factory.createFileSource(file.getAbsolutePath()).getOutputStream(true);
+		OutputStream out2 = factory.createFileSource(file.getAbsolutePath()).getOutputStream(true);
+		out1.write(first);
+		out2.write(second);
+		out1.close();
+		out2.close();
+
+		ByteArrayOutputStream expect = new ByteArrayOutputStream();
+		expect.write(base);
+		expect.write(first);
+		expect.write(second);
+		JdbcFileSource cold = (JdbcFileSource) factory.createFileSource(file.getAbsolutePath());
+		assertEquals(expect.size(), cold.length(),"Wrong length after both appends");
+		assertTrue(cold.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = cold.getInputStream()) {
+			assertArrayEquals(expect.toByteArray(), in.readAllBytes(),"Wrong content after both appends");
+		}
+
+		//  an append that closes after a replace lands after the new content
+		out1 = factory.createFileSource(file.getAbsolutePath()).getOutputStream(true);
+		out1.write(second);
+		try(OutputStream out = factory.createFileSource(file.getAbsolutePath()).getOutputStream()) {
+			out.write(first);
+		}
+		out1.close();
+		expect.reset();
+		expect.write(first);
+		expect.write(second);
+		cold = (JdbcFileSource) factory.createFileSource(file.getAbsolutePath());
+		assertEquals(expect.size(), cold.length(),"Wrong length after replace and append");
+		assertTrue(cold.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = cold.getInputStream()) {
+			assertArrayEquals(expect.toByteArray(), in.readAllBytes(),"Wrong content after replace and append");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(40)
+	public void testBulkWrite() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		byte [] data = new byte[jf.getChunk_size()*5+7];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte) (idx*7);
+		}
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/bulkWrite.bin");
+		try(OutputStream out = file.getOutputStream()) {
+			//  whole chunks from an offset in the caller's array, then a partial chunk 
+			//  and whole chunks that no longer start on a chunk boundary
+			byte [] tmp = new byte[data.length+3];
+			System.arraycopy(data, 0, tmp, 3, data.length);
+			int first = jf.getChunk_size()*2;
+			out.write(tmp, 3, first);
+			//  the stream must not hold on to the array after write returns
+			Arrays.fill(tmp, 3, 3+first, (byte)0);
+			out.write(tmp, 3+first, 11);
+			out.write(tmp, 3+first+11, data.length-first-11);
+			Arrays.fill(tmp, (byte)0);
+		}
+
+		assertEquals(data.length, file.length(),"Wrong length");
+		assertTrue(file.checkLength(false),"Row doesn't match file_data");
+		try(InputStream in = file.getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes(),"Wrong content");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(41)
+	public void testStrictAndRelatime() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/relatime.txt");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write("Hello".getBytes());
+		}
+		//  leave room for an access time after the modified time that is still in the past
+		Thread.sleep(100);
+
+		JdbcAccessTimePolicy policy = jf.getAccessTimePolicy();
+		long interval = jf.getRelatimeInterval();
+		long old = (System.currentTimeMillis()/1000)*1000-60000;
+		long recent = file.lastModified()+10;
+		assertEquals(JdbcAccessTimePolicy.STRICT, policy,"STRICT is not the default");
+		try {
+			//  every read
+			jf.setAccessTimePolicy(JdbcAccessTimePolicy.STRICT);
+			assertTrue(file.setLastAccessTime(recent),"Can't set access time");
+			file.getInputStream().close();
+			file.refresh();
+			assertTrue(file.lastAccessTime() > recent,"STRICT didn't update the access time");
+
+			//  an access time that is not after the modified time
+			jf.setAccessTimePolicy(JdbcAccessTimePolicy.RELATIME);
+			jf.setRelatimeInterval(TimeUnit.DAYS.toMillis(1));
+			assertTrue(file.setLastAccessTime(old),"Can't set access time");
+			file.getInputStream().close();
+			file.refresh();
+			assertTrue(file.lastAccessTime() > old,"RELATIME didn't update an access time before the modified time");
+
+			//  not one after the modified time that is newer than the interval
+			assertTrue(file.setLastAccessTime(recent),"Can't set access time");
+			file.getInputStream().close();
+			file.refresh();
+			assertEquals(recent, file.lastAccessTime(),"RELATIME updated a recent access time");
+
+			//  until it is older than the interval
+			jf.setRelatimeInterval(50);
+			file.getInputStream().close();
+			file.refresh();
+			assertTrue(file.lastAccessTime() > recent,"RELATIME didn't update an access time older than the interval");
+		} finally {
+			jf.setAccessTimePolicy(policy);
+			jf.setRelatimeInterval(interval);
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(42)
+	public void testPositionReadIrregularChunks() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int size = jf.getChunk_size();
+		byte [] data = pattern(size*4+size/2, 13);
+		//  the append leaves a short chunk in the middle of the file
+		JdbcFileSource file = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/irregular.bin");
+		try(OutputStream out = file.getOutputStream()) {
+			out.write(data, 0, size+size/2);
+		}
+		try(OutputStream out = file.getOutputStream(true)) {
+			out.write(data, size+size/2, data.length-size-size/2);
+		}
+		assertEquals(5, file.getChunkCount(),"Wrong chunk count");
+
+		//  ranges before, across and after the short chunk, each on a fresh file so the offsets aren't cached
+		byte [] buf = new byte[size];
+		for(int pos : new int[] {0, size-10, size+size/2-1, size*2, size*3+size/2+5, data.length-5}) {
+			JdbcFileSource cold = (JdbcFileSource) factory.createFileSource(file.getAbsolutePath());
+			int len = Math.min(buf.length, data.length-pos);
+			assertEquals(len, cold.read(pos, buf, 0, buf.length),"Wrong read length at "+pos);
+			assertArrayEquals(Arrays.copyOfRange(data, pos, pos+len), Arrays.copyOf(buf, len),"Wrong data at "+pos);
+		}
+		assertEquals(-1, file.read(data.length, buf, 0, buf.length),"Read past EOF");
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(43)
+	public void testPathCacheBounds() throws Exception {
+		JdbcPathCache cache = ((JdbcFileSourceFactory) factory).getPathCache();
+		int max = cache.getMaxSize();
+		try {
+			cache.clear();
+			cache.setMaxSize(100);
+			cache.put("/keep", 1);
+			for (int idx = 0; idx < 500; idx++) {
+				cache.put("/evict/"+idx, idx);
+				//  recently used entries survive eviction
+				assertNotNull(cache.get("/keep"),"Recently used entry evicted at "+idx);
+			}
+			assertTrue(cache.size() <= 100,"Cache not bounded "+cache.size());
+
+			//  only the tree is invalidated, not siblings that share it's name as a prefix
+			cache.clear();
+			cache.put("/tree", 1);
+			cache.put("/tree/a", 2);
+			cache.put("/tree/a/b", 3);
+			cache.put("/tree2", 4);
+			cache.put("/tree.txt", 5);
+			cache.invalidateTree("/tree");
+			assertEquals(null, cache.get("/tree"),"Tree root not invalidated");
+			assertEquals(null, cache.get("/tree/a/b"),"Tree not invalidated");
+			assertEquals(4, (long) cache.get("/tree2"),"Sibling invalidated");
+			assertEquals(5, (long) cache.get("/tree.txt"),"Sibling invalidated");
+			assertEquals(2, cache.size(),"Wrong size after invalidation");
+		} finally {
+			cache.clear();
+			cache.setMaxSize(max);
+		}
+	}
+
+	@Test
+	@Order(44)
+	public void testCachedChunkViews() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int size = jf.getChunk_size();
+		byte [] data = pattern(size*3+41, 23);
+		JdbcFileSource file = createFile("views.bin", data);
+
+		try(AutoCloseable cacheSize = setting(jf::getChunkCacheSize, jf::setChunkCacheSize, data.length*2L);
+				AutoCloseable direct = setting(jf::isChunkCacheDirect, jf::setChunkCacheDirect, false)) {
+			for(boolean offHeap : new boolean[] {false,true}) {
+				jf.setChunkCacheDirect(offHeap);
+				try(InputStream in = file.getInputStream()) {
+					assertArrayEquals(data, in.readAllBytes(),"Wrong data direct="+offHeap);
+				}
+				assertEquals(data.length, jf.getChunkCache().getBytes(),"Chunks not cached direct="+offHeap);
+
+				//  every read below is served from the cache
+				try(InputStream in = file.getInputStream(size-3)) {
+					byte [] buf = new byte[size+6];
+					assertEquals(buf.length, in.readNBytes(buf, 0, buf.length),"Wrong cached read length");
+					assertArrayEquals(Arrays.copyOfRange(data, size-3, size*2+3), buf,"Wrong cached read direct="+offHeap);
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					assertEquals(data.length-size*2-3, in.transferTo(out),"Wrong cached transfer length");
+					assertArrayEquals(Arrays.copyOfRange(data, size*2+3, data.length), out.toByteArray(),"Wrong cached transfer direct="+offHeap);
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				assertEquals(data.length, file.transferTo(Channels.newChannel(out)),"Wrong cached channel transfer length");
+				assertArrayEquals(data, out.toByteArray(),"Wrong cached channel transfer direct="+offHeap);
+
+				byte [] buf = new byte[size*2];
+				assertEquals(buf.length, file.read(size/2, buf, 0, buf.length),"Wrong cached position read length");
+				assertArrayEquals(Arrays.copyOfRange(data, size/2, size/2+buf.length), buf,"Wrong cached position read direct="+offHeap);
+			}
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(45)
+	public void testPrefetchBudgetRecovery() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int size = jf.getChunk_size();
+		byte [] data = pattern(size*10+3, 29);
+		FileSource file = createFile("budget.bin", data);
+
+		try(AutoCloseable depth = setting(jf::getPrefetchDepth, jf::setPrefetchDepth, 2);
+				AutoCloseable memory = setting(jf::getPrefetchMemory, jf::setPrefetchMemory, size*2)) {
+			//  an idle stream fills it's queue and holds the whole budget
+			InputStream idle = file.getInputStream();
+			assertEquals(data[0] & 0xff, idle.read(),"Wrong first byte");
+			Thread.sleep(200);
+
+			try(InputStream in = file.getInputStream()) {
+				byte [] buf = new byte[size*3];
+				assertEquals(buf.length, in.readNBytes(buf, 0, buf.length),"Wrong read without budget");
+				assertArrayEquals(Arrays.copyOf(data, buf.length), buf,"Wrong data without budget");
+
+				//  closing the idle stream doesn't hang on it's worker and frees the budget for the reader
+				idle.close();
+				assertArrayEquals(Arrays.copyOfRange(data, buf.length, data.length), in.readAllBytes(),"Wrong data after the budget freed");
+			}
+
+			//  all of the budget came back
+			try(InputStream in = file.getInputStream()) {
+				assertArrayEquals(data, in.readAllBytes(),"Wrong data with the whole budget");
+			}
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	@Test
+	@Order(46)
+	public void testRowSnapshot() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		JdbcFileSource file = createFile("snapshot.txt", "Hello".getBytes());
+		long old = (System.currentTimeMillis()/1000)*1000-60000;
+
+		try(AutoCloseable ttl = setting(jf::getFieldTimeToLive, jf::setFieldTimeToLive, 60000)) {
+			//  one column loads the whole row
+			file.refresh();
+			assertEquals(5, file.length(),"Wrong length");
+			String group = file.getGroup().getName();
+			boolean otherExecute = file.canOtherExecute();
+			long modified = file.lastModified();
+
+			try(Connection con = jf.getConnection();
+					PreparedStatement pstmt = con.prepareStatement("update file_source.file set group_name=?, other_executable=?, last_modified_date=? where fileid=?")) {
+				pstmt.setString(1, "snapshot");
+				pstmt.setBoolean(2, !otherExecute);
+				pstmt.setTimestamp(3, new Timestamp(old));
+				pstmt.setLong(4, file.getFileId());
+				assertEquals(1, pstmt.executeUpdate(),"Row not updated");
+			}
+
+			//  the other columns come from the same snapshot
+			assertEquals(group, file.getGroup().getName(),"Group not from the snapshot");
+			assertEquals(otherExecute, file.canOtherExecute(),"Permission not from the snapshot");
+			assertEquals(modified, file.lastModified(),"Modified time not from the snapshot");
+
+			file.refresh();
+			assertEquals("snapshot", file.getGroup().getName(),"Group not reloaded");
+			assertEquals(!otherExecute, file.canOtherExecute(),"Permission not reloaded");
+			assertEquals(old, file.lastModified(),"Modified time not reloaded");
+		}
+
+		assertTrue(file.delete(),"Can't delete "+file);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @return every column of the file row as seen through the getters
+	 */
+	private static String describe(FileSource file) throws IOException {
+		JdbcFileSource f = (JdbcFileSource) file;
+		return f.getFileId()+" "+f.getName()+" "+f.getOwner().getName()+" "+f.getGroup().getName()+" "+f.isFile()
+				+" "+f.creationTime()+" "+f.lastAccessTime()+" "+f.lastModified()+" "+f.length()+" "+f.getChunkCount()
+				+" "+f.canOwnerRead()+f.canOwnerWrite()+f.canOwnerExecute()
+				+" "+f.canGroupRead()+f.canGroupWrite()+f.canGroupExecute()
+				+" "+f.canOtherRead()+f.canOtherWrite()+f.canOtherExecute();
+	}
+
+	@Test
+	@Order(47)
+	public void testRowMapping() throws Exception {
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		JdbcFileSource dir = (JdbcFileSource) factory.createFileSource(remoteTestFileDirPath+"/mapped");
+		assertTrue(dir.mkdirs(),"Could not create "+dir);
+		createFile("mapped/other.txt", "Other".getBytes());
+		JdbcFileSource file = createFile("mapped/row.bin", pattern(jf.getChunk_size()+7, 3));
+		String owner = file.getOwner().getName();
+
+		//  a value in every column that differs from the defaults and from it's neighbors
+		long now = (System.currentTimeMillis()/1000)*1000;
+		try(Connection con = jf.getConnection();
+				PreparedStatement pstmt = con.prepareStatement("update file_source.file set group_name=?,"
+						+ " create_time=?, last_access_date=?, last_modified_date=?, owner_executable=?,"
+						+ " group_readable=?, group_writeable=?, group_executable=?,"
+						+ " other_readable=?, other_writeable=?, other_executable=? where fileid=?")) {
+			pstmt.setString(1, "mapper");
+			pstmt.setTimestamp(2, new Timestamp(now-3000000));
+			pstmt.setTimestamp(3, new Timestamp(now-2000000));
+			pstmt.setTimestamp(4, new Timestamp(now-1000000));
+			pstmt.setBoolean(5, false);
+			pstmt.setBoolean(6, false);
+			pstmt.setBoolean(7, false);
+			pstmt.setBoolean(8, true);
+			pstmt.setBoolean(9, false);
+			pstmt.setBoolean(10, true);
+			pstmt.setBoolean(11, true);
+			pstmt.setLong(12, file.getFileId());
+			assertEquals(1, pstmt.executeUpdate(),"Row not updated");
+		}
+		String expect = file.getFileId()+" row.bin "+owner+" mapper true "+(now-3000000)+" "+(now-2000000)+" "+(now-1000000)
+				+" "+(jf.getChunk_size()+7)+" 2 truetruefalse falsefalsetrue falsetruetrue";
+
+		//  each statement has it's own mapper, the second pass uses the cached ones
+		try(AutoCloseable ttl = setting(jf::getFieldTimeToLive, jf::setFieldTimeToLive, 60000)) {
+			for (int pass = 0; pass < 2; pass++) {
+				file.refresh();
+				assertEquals(expect, describe(file),"Wrong row by fileid pass "+pass);
+
+				dir.refresh();
+				int found = 0;
+				for(FileSource kid : dir.listFiles()) {
+					if( kid.getName().equals("row.bin")) {
+						assertEquals(expect, describe(kid),"Wrong listed row pass "+pass);
+						found++;
+					}
+				}
+				for(Iterator<JdbcFileSource> it = dir.iterateFiles(); it.hasNext(); ) {
+					JdbcFileSource kid = it.next();
+					if( kid.getName().equals("row.bin")) {
+						assertEquals(expect, describe(kid),"Wrong iterated row pass "+pass);
+						found++;
+					}
+				}
+				for(Iterator<JdbcFileSource> it = dir.iterateFiles(new JdbcNameFilter("row.*")); it.hasNext(); ) {
+					assertEquals(expect, describe(it.next()),"Wrong filtered row pass "+pass);
+					found++;
+				}
+				assertEquals(3, found,"Row missing from a listing pass "+pass);
+			}
+		}
+
+		deleteAll(dir);
+	}
+
+	@Test
+	@Order(48)
+	public void testChunkOffsets() throws Exception {
+		//  a short last chunk
+		long [] offsets = {0, 100, 200, 250};
+		assertEquals(1, JdbcFileSource.findChunk(offsets, 0),"Wrong chunk at 0");
+		assertEquals(1, JdbcFileSource.findChunk(offsets, 99),"Wrong chunk at the end of the first chunk");
+		assertEquals(2, JdbcFileSource.findChunk(offsets, 100),"Wrong chunk at the start of the second chunk");
+		assertEquals(3, JdbcFileSource.findChunk(offsets, 200),"Wrong chunk at the start of the last chunk");
+		assertEquals(3, JdbcFileSource.findChunk(offsets, 249),"Wrong chunk at the last byte");
+		assertEquals(4, JdbcFileSource.findChunk(offsets, 250),"Wrong chunk at EOF");
+		assertEquals(4, JdbcFileSource.findChunk(offsets, 1000),"Wrong chunk past EOF");
+		//  an empty chunk is skipped and an empty file has no chunks
+		assertEquals(3, JdbcFileSource.findChunk(new long[] {0, 100, 100, 150}, 100),"Empty chunk not skipped");
+		assertEquals(1, JdbcFileSource.findChunk(new long[] {0}, 0),"Wrong chunk in an empty file");
+
+		JdbcFileSourceFactory jf = (JdbcFileSourceFactory) factory;
+		int size = jf.getChunk_size();
+		JdbcFileSource file = createFile("offsets.bin", pattern(size*3+size/2, 7));
+		long [] full = {0, size, size*2, size*3, size*3+size/2};
+		assertArrayEquals(full, file.getChunkOffsets(),"Wrong offsets");
+		assertTrue(file.getChunkOffsets() == file.getChunkOffsets(),"Offsets not cached");
+
+		//  the append starts a new chunk after the short one
+		try(OutputStream out = file.getOutputStream(true)) {
+			out.write(pattern(size+1, 5));
+		}
+		long [] appended = {0, size, size*2, size*3, size*3+size/2, size*4+size/2, size*4+size/2+1};
+		assertArrayEquals(appended, file.getChunkOffsets(),"Stale offsets after append");
+		assertEquals(5, JdbcFileSource.findChunk(appended, size*3+size/2),"Wrong chunk after the short chunk");
+		assertEquals(6, JdbcFileSource.findChunk(appended, size*4+size/2),"Wrong chunk at the one byte chunk");
+
+		assertTrue(file.delete(),"Can't delete "+file);
+		assertArrayEquals(new long[1], file.getChunkOffsets(),"Offsets of a deleted file");
+		JdbcFileSource empty = createFile("empty.bin", new byte[0]);
+		assertArrayEquals(new long[1], empty.getChunkOffsets(),"Offsets of an empty file");
+		assertTrue(empty.delete(),"Can't delete "+empty);
+	}
+
 	@Test
 	@Order(12)
 	public void testThree() throws Exception {